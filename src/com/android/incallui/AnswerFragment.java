@@ -90,8 +90,10 @@ public class AnswerFragment extends BaseFragment<AnswerPresenter, AnswerPresente
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
             Bundle savedInstanceState) {
-        mGlowpad = (GlowPadWrapper) inflater.inflate(R.layout.answer_fragment,
-                container, false);
+        final View prewarmed = InCallViewPrewarmer.getInstance().take(R.layout.answer_fragment,
+                getActivity());
+        mGlowpad = (GlowPadWrapper) (prewarmed != null ? prewarmed
+                : inflater.inflate(R.layout.answer_fragment, container, false));
 
         Log.d(this, "Creating view for answer fragment ", this);
         Log.d(this, "Created from activity", getActivity());
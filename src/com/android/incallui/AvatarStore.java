@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.LruCache;
+
+import com.android.contacts.common.util.BitmapUtil;
+
+/**
+ * Notification-size avatars made from contact photos, shared by the in-call notification,
+ * the photo icon of {@link ContactsAsyncHelper} and the conference participant list, so
+ * that each photo is scaled (and circle-cropped) once rather than on every update.
+ *
+ * Avatars are keyed by photo URI, or by contact lookup key when there is no URI; photos with
+ * neither are scaled but not kept. Each avatar remembers a fingerprint of the photo it was made
+ * from, not the photo itself: when a contact's photo is reloaded, the stale avatar is replaced.
+ * The store holds at most {@link #MEMORY_BUDGET_BYTES} of avatars and may be used from any
+ * thread.
+ *
+ * Scaled avatars fit {@code R.dimen.notification_icon_size}, the size the photo icon of
+ * {@link ContactsAsyncHelper} always had; circle avatars fill the notification large icon.
+ */
+public class AvatarStore {
+    private static final String TAG = AvatarStore.class.getSimpleName();
+
+    private static final int MEMORY_BUDGET_BYTES = 2 * 1024 * 1024;
+
+    private static AvatarStore sInstance;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mIconSize;
+    private final LruCache<Key, Avatar> mAvatars =
+            new LruCache<Key, Avatar>(MEMORY_BUDGET_BYTES) {
+        @Override
+        protected int sizeOf(Key key, Avatar avatar) {
+            return avatar.bitmap.getByteCount();
+        }
+    };
+
+    private static class Avatar {
+        final Bitmap bitmap;
+        // What tells whether the photo is still the one the avatar was made from.
+        final int sourceGenerationId;
+        final int sourceWidth;
+        final int sourceHeight;
+
+        Avatar(Bitmap source, Bitmap bitmap) {
+            this.bitmap = bitmap;
+            sourceGenerationId = source.getGenerationId();
+            sourceWidth = source.getWidth();
+            sourceHeight = source.getHeight();
+        }
+
+        boolean isMadeFrom(Bitmap photo) {
+            return sourceGenerationId == photo.getGenerationId()
+                    && sourceWidth == photo.getWidth() && sourceHeight == photo.getHeight();
+        }
+    }
+
+    public static synchronized AvatarStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AvatarStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AvatarStore(Context context) {
+        final Resources res = context.getResources();
+        mWidth = (int) res.getDimension(android.R.dimen.notification_large_icon_width);
+        mHeight = (int) res.getDimension(android.R.dimen.notification_large_icon_height);
+        mIconSize = res.getDimensionPixelSize(R.dimen.notification_icon_size);
+    }
+
+    /**
+     * Returns the avatar for a contact photo, creating it if needed.
+     *
+     * @param photoUri The URI the photo was loaded from, or {@code null} if unknown.
+     * @param lookupKey The lookup key of the contact, or {@code null} if unknown.
+     * @param photo The photo.
+     * @param circle Whether to crop the avatar to a circle.
+     * @return the avatar, or {@code null} if none can be made from the photo.
+     */
+    public Bitmap getAvatar(Uri photoUri, String lookupKey, Bitmap photo, boolean circle) {
+        if (photo == null) {
+            return null;
+        }
+        final String source = photoUri != null ? photoUri.toString() : lookupKey;
+        final Key key = source != null ? new Key(source, circle) : null;
+        final Avatar avatar = key != null ? mAvatars.get(key) : null;
+        if (avatar != null && avatar.isMadeFrom(photo)) {
+            return avatar.bitmap;
+        }
+        if (avatar != null) {
+            Log.d(TAG, "Contact photo changed, replacing avatar");
+        }
+
+        final Bitmap bitmap = circle ? BitmapUtil.getRoundedBitmap(photo, mWidth, mHeight)
+                : scaleToFit(photo);
+        if (bitmap != null && key != null) {
+            mAvatars.put(key, new Avatar(photo, bitmap));
+        }
+        return bitmap;
+    }
+
+    /**
+     * Scales the photo down, keeping its aspect ratio, so that its longer edge fits the
+     * icon size. Smaller photos are used as they are.
+     */
+    private Bitmap scaleToFit(Bitmap photo) {
+        final int width = photo.getWidth();
+        final int height = photo.getHeight();
+        final int longerEdge = Math.max(width, height);
+        final int size = mIconSize;
+        if (longerEdge <= size) {
+            return photo;
+        }
+        final float ratio = ((float) longerEdge) / size;
+        final int newWidth = (int) (width / ratio);
+        final int newHeight = (int) (height / ratio);
+        // If the longer edge is much longer than the shorter edge, the latter may
+        // become 0 which will cause a crash.
+        if (newWidth <= 0 || newHeight <= 0) {
+            Log.w(this, "Avatar width or height would be 0");
+            return null;
+        }
+        return Bitmap.createScaledBitmap(photo, newWidth, newHeight, true);
+    }
+
+    private static final class Key {
+        private final String mSource;
+        private final boolean mCircle;
+
+        Key(String source, boolean circle) {
+            mSource = source;
+            mCircle = circle;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mCircle == other.mCircle && mSource.equals(other.mSource);
+        }
+
+        @Override
+        public int hashCode() {
+            return mSource.hashCode() * 31 + (mCircle ? 1 : 0);
+        }
+    }
+}
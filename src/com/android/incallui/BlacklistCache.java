@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.provider.Settings;
+import android.provider.Telephony.Blacklist;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import com.android.internal.telephony.util.BlacklistUtils;
+import com.google.common.collect.Sets;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps whether the blacklist is enabled and which numbers it blocks in memory, so that
+ * the call buttons can be laid out without reading settings or the blacklist provider on
+ * the main thread.
+ *
+ * Both are loaded on a worker thread when the cache is created and reloaded whenever the
+ * setting or the provider changes; listeners are told on the main thread. Until the first
+ * load completes the blacklist is reported as disabled.
+ *
+ * Plain entries are matched by a hash lookup of the normalized number. Wildcard entries
+ * ('*' or '%' for any digits, '.' or '_' for a single digit) are compiled into a trie, so
+ * that matching a number costs one walk of its digits rather than one pattern per entry.
+ */
+public class BlacklistCache {
+    private static final String TAG = BlacklistCache.class.getSimpleName();
+
+    private static final int EVENT_RELOAD = 1;
+    private static final int EVENT_LOADED = 2;
+
+    public interface Listener {
+        public void onBlacklistChanged();
+    }
+
+    private static BlacklistCache sInstance;
+
+    private final Context mContext;
+    private final Handler mWorkerHandler;
+    private final Set<Listener> mListeners = Sets.newHashSet();
+    // Membership of numbers already asked for, until the next reload.
+    private final HashMap<String, Boolean> mMembership = new HashMap<String, Boolean>();
+    private Snapshot mSnapshot = new Snapshot(false);
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == EVENT_LOADED) {
+                mSnapshot = (Snapshot) msg.obj;
+                mMembership.clear();
+                for (Listener listener : mListeners) {
+                    listener.onBlacklistChanged();
+                }
+            }
+        }
+    };
+
+    private final ContentObserver mObserver = new ContentObserver(mMainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            Log.d(TAG, "Blacklist changed, reloading");
+            reload();
+        }
+    };
+
+    public static synchronized BlacklistCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BlacklistCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BlacklistCache(Context context) {
+        mContext = context;
+
+        final HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mWorkerHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == EVENT_RELOAD) {
+                    mMainHandler.obtainMessage(EVENT_LOADED, load()).sendToTarget();
+                }
+            }
+        };
+
+        mContext.getContentResolver().registerContentObserver(
+                Settings.System.getUriFor(Settings.System.PHONE_BLACKLIST_ENABLED), false,
+                mObserver);
+        mContext.getContentResolver().registerContentObserver(
+                Blacklist.CONTENT_URI, true, mObserver);
+        reload();
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return whether call blacklisting is enabled, as of the last load.
+     */
+    public boolean isBlacklistEnabled() {
+        return mSnapshot.enabled;
+    }
+
+    /**
+     * @return whether the blacklist blocks calls from the number, as of the last load.
+     */
+    public boolean isListed(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return false;
+        }
+        Boolean listed = mMembership.get(number);
+        if (listed == null) {
+            listed = mSnapshot.matches(PhoneNumberUtils.normalizeNumber(number));
+            mMembership.put(number, listed);
+        }
+        return listed;
+    }
+
+    private void reload() {
+        // Changes tend to come in bursts, e.g. a setting and a provider row.
+        mWorkerHandler.removeMessages(EVENT_RELOAD);
+        mWorkerHandler.sendEmptyMessage(EVENT_RELOAD);
+    }
+
+    /** Runs on the worker thread. */
+    private Snapshot load() {
+        final Snapshot snapshot = new Snapshot(BlacklistUtils.isBlacklistEnabled(mContext));
+        if (!snapshot.enabled) {
+            return snapshot;
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(Blacklist.CONTENT_URI,
+                    new String[] { Blacklist.NUMBER },
+                    Blacklist.PHONE_MODE + " != 0", null, null);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    snapshot.add(cursor.getString(0));
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to load blacklist", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        Log.d(TAG, "Loaded blacklist: " + snapshot.mNumbers.size() + " numbers, "
+                + snapshot.mPatterns + " patterns");
+        return snapshot;
+    }
+
+    /**
+     * An immutable (once loaded) copy of the blacklist.
+     */
+    private static class Snapshot {
+        final boolean enabled;
+        private final HashSet<String> mNumbers = new HashSet<String>();
+        private final TrieNode mPatternRoot = new TrieNode();
+        private int mPatterns;
+
+        Snapshot(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        void add(String entry) {
+            if (TextUtils.isEmpty(entry)) {
+                return;
+            }
+            if (entry.indexOf('*') < 0 && entry.indexOf('%') < 0
+                    && entry.indexOf('.') < 0 && entry.indexOf('_') < 0) {
+                mNumbers.add(PhoneNumberUtils.normalizeNumber(entry));
+                return;
+            }
+
+            TrieNode node = mPatternRoot;
+            for (int i = 0; i < entry.length(); i++) {
+                final char c = entry.charAt(i);
+                if (c == '*' || c == '%') {
+                    if (node.anyRun == null) {
+                        node.anyRun = new TrieNode();
+                    }
+                    node = node.anyRun;
+                } else if (c == '.' || c == '_') {
+                    if (node.anyDigit == null) {
+                        node.anyDigit = new TrieNode();
+                    }
+                    node = node.anyDigit;
+                } else {
+                    final int index = TrieNode.indexOf(c);
+                    if (index < 0) {
+                        // Formatting, such as spaces or dashes.
+                        continue;
+                    }
+                    if (node.children[index] == null) {
+                        node.children[index] = new TrieNode();
+                    }
+                    node = node.children[index];
+                }
+            }
+            node.terminal = true;
+            mPatterns++;
+        }
+
+        boolean matches(String normalizedNumber) {
+            if (!enabled || TextUtils.isEmpty(normalizedNumber)) {
+                return false;
+            }
+            return mNumbers.contains(normalizedNumber)
+                    || (mPatterns > 0 && mPatternRoot.matches(normalizedNumber, 0));
+        }
+    }
+
+    private static class TrieNode {
+        // Digits 0-9 and '+'.
+        final TrieNode[] children = new TrieNode[11];
+        TrieNode anyDigit;
+        TrieNode anyRun;
+        boolean terminal;
+
+        static int indexOf(char c) {
+            if (c >= '0' && c <= '9') {
+                return c - '0';
+            }
+            return c == '+' ? 10 : -1;
+        }
+
+        boolean matches(String number, int start) {
+            if (start == number.length()) {
+                return terminal || (anyRun != null && anyRun.matches(number, start));
+            }
+            final int index = indexOf(number.charAt(start));
+            if (index >= 0 && children[index] != null
+                    && children[index].matches(number, start + 1)) {
+                return true;
+            }
+            if (anyDigit != null && anyDigit.matches(number, start + 1)) {
+                return true;
+            }
+            if (anyRun != null) {
+                for (int i = start; i <= number.length(); i++) {
+                    if (anyRun.matches(number, i)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+}
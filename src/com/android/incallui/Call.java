@@ -29,6 +29,7 @@ import android.telecom.InCallService.VideoCall;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.VideoProfile;
 import android.telephony.SubscriptionManager;
+import android.text.TextUtils;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -247,6 +248,7 @@ public final class Call {
     private final VideoSettings mVideoSettings = new VideoSettings();
     private int mModifyToVideoState = VideoProfile.VideoState.AUDIO_ONLY;
     private boolean mIsOutgoing = false;
+    private NormalizedNumber mNormalizedNumber;
 
     private InCallVideoCallListener mVideoCallListener;
 
@@ -337,6 +339,19 @@ public final class Call {
         return getHandle() == null ? null : getHandle().getSchemeSpecificPart();
     }
 
+    /**
+     * Returns the normalized forms of {@link #getNumber()}. They are computed once and
+     * recomputed only if the number of the call changes.
+     */
+    public NormalizedNumber getNormalizedNumber() {
+        final String number = getNumber();
+        if (mNormalizedNumber == null
+                || !TextUtils.equals(mNormalizedNumber.getRawNumber(), number)) {
+            mNormalizedNumber = new NormalizedNumber(number);
+        }
+        return mNormalizedNumber;
+    }
+
     public Uri getHandle() {
         return mTelecommCall.getDetails().getHandle();
     }
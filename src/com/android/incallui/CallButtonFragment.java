@@ -108,7 +108,11 @@ public class CallButtonFragment
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
             Bundle savedInstanceState) {
-        final View parent = inflater.inflate(R.layout.call_button_fragment, container, false);
+        View parent = InCallViewPrewarmer.getInstance().take(R.layout.call_button_fragment,
+                getActivity());
+        if (parent == null) {
+            parent = inflater.inflate(R.layout.call_button_fragment, container, false);
+        }
 
         mAudioButton = (CompoundButton) parent.findViewById(R.id.audioButton);
         mAudioButton.setOnClickListener(this);
@@ -187,7 +191,6 @@ public class CallButtonFragment
             }
             case R.id.mergeButton:
                 getPresenter().mergeClicked();
-                mMergeButton.setEnabled(false);
                 break;
             case R.id.holdButton: {
                 getPresenter().holdClicked(!mHoldButton.isSelected());
@@ -421,6 +424,11 @@ public class CallButtonFragment
         mSwapButton.setVisibility(show ? View.VISIBLE : View.GONE);
     }
 
+    @Override
+    public void enableSwap(boolean enabled) {
+        mSwapButton.setEnabled(enabled);
+    }
+
     @Override
     public void showChangeToVideoButton(boolean show) {
         mChangeToVideoButton.setVisibility(show ? View.VISIBLE : View.GONE);
@@ -467,6 +475,11 @@ public class CallButtonFragment
         }
     }
 
+    @Override
+    public void enableMerge(boolean enabled) {
+        mMergeButton.setEnabled(enabled);
+    }
+
     @Override
     public void showPauseVideoButton(boolean show) {
         mPauseVideoButton.setVisibility(show ? View.VISIBLE : View.GONE);
@@ -43,7 +43,8 @@ import java.util.Objects;
 public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButtonUi>
         implements InCallStateListener, AudioModeListener, IncomingCallListener,
         InCallDetailsListener, CallList.ActiveSubChangeListener, CanAddCallListener,
-        CameraSelectionListener {
+        CameraSelectionListener, BlacklistCache.Listener,
+        CallRecorder.RecordingProgressListener, OptimisticCallState.Listener {
 
     private static final String KEY_AUTOMATICALLY_MUTED = "incall_key_automatically_muted";
     private static final String KEY_PREVIOUS_MUTE_STATE = "incall_key_previous_mute_state";
@@ -69,6 +70,9 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
         InCallPresenter.getInstance().addCanAddCallListener(this);
         InCallPresenter.getInstance().getInCallCameraManager().addCameraSelectionListener(this,
             true);
+        BlacklistCache.getInstance(ui.getContext()).addListener(this);
+        CallRecorder.getInstance().addRecordingProgressListener(this);
+        OptimisticCallState.getInstance().addListener(this);
     }
 
     @Override
@@ -82,6 +86,9 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
         CallList.getInstance().removeActiveSubChangeListener(this);
         InCallPresenter.getInstance().removeCanAddCallListener(this);
         InCallPresenter.getInstance().getInCallCameraManager().removeCameraSelectionListener(this);
+        BlacklistCache.getInstance(ui.getContext()).removeListener(this);
+        CallRecorder.getInstance().removeRecordingProgressListener(this);
+        OptimisticCallState.getInstance().removeListener(this);
     }
 
     @Override
@@ -143,6 +150,45 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
         }
     }
 
+    @Override
+    public void onStartRecording() {
+        updateCallRecordButton();
+    }
+
+    @Override
+    public void onStopRecording() {
+        updateCallRecordButton();
+    }
+
+    @Override
+    public void onRecordingError() {
+        updateCallRecordButton();
+    }
+
+    @Override
+    public void onRecordingTimeProgress(long elapsedTimeMs) {
+    }
+
+    private void updateCallRecordButton() {
+        if (getUi() != null) {
+            getUi().setCallRecordButton(CallRecorder.getInstance().isRecordingRequested());
+        }
+    }
+
+    @Override
+    public void onOptimisticStateChanged() {
+        if (getUi() != null && mCall != null) {
+            updateCallButtons(mCall, getUi().getContext());
+        }
+    }
+
+    @Override
+    public void onBlacklistChanged() {
+        if (getUi() != null && mCall != null) {
+            updateCallButtons(mCall, getUi().getContext());
+        }
+    }
+
     @Override
     public void onAudioMode(int mode) {
         if (getUi() != null) {
@@ -214,6 +260,8 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
         if (mCall == null) {
             return;
         }
+        OptimisticCallState.getInstance().expect(mCall, checked
+                ? OptimisticCallState.Operation.HOLD : OptimisticCallState.Operation.UNHOLD);
         if (checked) {
             Log.i(this, "Putting the call on hold: " + mCall);
             TelecomAdapter.getInstance().holdCall(mCall.getId());
@@ -229,11 +277,18 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
         }
 
         Log.i(this, "Swapping the call: " + mCall);
-        TelecomAdapter.getInstance().swap(mCall.getId());
+        if (TelecomAdapter.getInstance().swap(mCall.getId())) {
+            OptimisticCallState.getInstance().expect(mCall, OptimisticCallState.Operation.SWAP);
+        }
     }
 
     public void mergeClicked() {
-        TelecomAdapter.getInstance().merge(mCall.getId());
+        if (mCall == null) {
+            return;
+        }
+        if (TelecomAdapter.getInstance().merge(mCall.getId())) {
+            OptimisticCallState.getInstance().expect(mCall, OptimisticCallState.Operation.MERGE);
+        }
     }
 
     public void addParticipantClicked() {
@@ -338,12 +393,12 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
     public void callRecordClicked(boolean startRecording) {
         CallRecorder recorder = CallRecorder.getInstance();
         if (startRecording) {
-            recorder.startRecording(mCall.getNumber(),
-                    mCall.getCreateTimeMillis());
-        } else if (recorder.isRecording()) {
+            // Updated again once the recorder has started, or failed to.
+            getUi().setCallRecordButton(recorder.startRecording(mCall.getId(),
+                    mCall.getNumber(), mCall.getCreateTimeMillis()));
+        } else {
             recorder.finishRecording();
         }
-        getUi().setCallRecordButton(recorder.isRecording());
     }
 
     public void addToBlacklistClicked() {
@@ -362,6 +417,7 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
                         TelecomAdapter.getInstance().disconnectCall(mCall.getId());
                         BlacklistUtils.addOrUpdate(context, number,
                                 BlacklistUtils.BLOCK_CALLS, BlacklistUtils.BLOCK_CALLS);
+                        ContactInfoCache.getInstance(context).reportSpam(mCall);
                     }
                 })
                 .setNegativeButton(R.string.pause_prompt_no, null)
@@ -403,6 +459,13 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
         }
     }
 
+    private boolean shouldShowAddToBlacklist(Call call, Context context) {
+        final String number = call.getNumber();
+        final BlacklistCache blacklist = BlacklistCache.getInstance(context);
+        return !TextUtils.isEmpty(number) && blacklist.isBlacklistEnabled()
+                && !blacklist.isListed(number);
+    }
+
     private void updateVideoCallButtons(Call call) {
         Log.v(this, "Showing buttons for video call.");
         final CallButtonUi ui = getUi();
@@ -424,8 +487,7 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
         ui.showSwitchCameraButton(true);
         ui.showPauseVideoButton(true);
 
-        boolean showAddToBlacklistOption = !TextUtils.isEmpty(call.getNumber())
-                && BlacklistUtils.isBlacklistEnabled(context);
+        boolean showAddToBlacklistOption = shouldShowAddToBlacklist(call, context);
         boolean showAddParticipantOption = call.can(android.telecom.Call.Details.ADD_PARTICIPANT);
         boolean showManageVideoCallConferenceOption =
                 call.can(android.telecom.Call.Details.CAPABILITY_MANAGE_CONFERENCE);
@@ -434,7 +496,7 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
 
         ui.showHoldButton(supportHold);
         ui.enableHold(enableHoldOption);
-        ui.setHold(call.getState() == Call.State.ONHOLD);
+        ui.setHold(OptimisticCallState.getInstance().getState(call) == Call.State.ONHOLD);
 
         int activeButtonCount = supportHold ? 4 : 3;
         int buttonCount = activeButtonCount;
@@ -531,7 +593,8 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
         final boolean canAdd = TelecomAdapter.getInstance().canAddCall();
         final boolean enableHoldOption = call.can(android.telecom.Call.Details.CAPABILITY_HOLD);
         final boolean supportHold = call.can(android.telecom.Call.Details.CAPABILITY_SUPPORT_HOLD);
-        final boolean isCallOnHold = call.getState() == Call.State.ONHOLD;
+        final OptimisticCallState optimisticState = OptimisticCallState.getInstance();
+        final boolean isCallOnHold = optimisticState.getState(call) == Call.State.ONHOLD;
 
         boolean canVideoCall = call.can(android.telecom.Call.Details.CAPABILITY_SUPPORTS_VT_LOCAL)
                 && call.can(android.telecom.Call.Details.CAPABILITY_SUPPORTS_VT_REMOTE);
@@ -550,14 +613,15 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
         boolean showSwapOption = call.can(android.telecom.Call.Details.CAPABILITY_SWAP_CONFERENCE);
         boolean showHoldOption = !showSwapOption && (enableHoldOption || supportHold);
         ui.setHold(isCallOnHold);
+        ui.enableSwap(!optimisticState.isPending(call, OptimisticCallState.Operation.SWAP));
+        ui.enableMerge(!optimisticState.isPending(call, OptimisticCallState.Operation.MERGE));
 
-        boolean showAddToBlacklistOption = !TextUtils.isEmpty(call.getNumber())
-                && BlacklistUtils.isBlacklistEnabled(context);
+        boolean showAddToBlacklistOption = shouldShowAddToBlacklist(call, context);
 
         final CallRecorder recorder = CallRecorder.getInstance();
         boolean showCallRecordOption =
                 recorder.isEnabled() && call.getState() == Call.State.ACTIVE;
-        ui.setCallRecordButton(showCallRecordOption && recorder.isRecording());
+        ui.setCallRecordButton(showCallRecordOption && recorder.isRecordingRequested());
 
         int activeButtonCount = 3; // audio, mute, dialpad
         int buttonCount = activeButtonCount;
@@ -695,6 +759,7 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
         void showHoldButton(boolean show);
         void enableHold(boolean enabled);
         void showSwapButton(boolean show);
+        void enableSwap(boolean enabled);
         void showChangeToVideoButton(boolean show);
         void enableChangeToVideoButton(boolean enable);
         void showSwitchCameraButton(boolean show);
@@ -703,6 +768,7 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
         void showAddParticipantButton(boolean show);
         void showManageConferenceVideoCallButton(boolean show);
         void showMergeButton(boolean show);
+        void enableMerge(boolean enabled);
         void showPauseVideoButton(boolean show);
         void setPauseVideoButton(boolean isPaused);
         void showCallRecordButton(boolean show);
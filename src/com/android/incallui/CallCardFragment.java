@@ -39,12 +39,9 @@ import android.telecom.DisconnectCause;
 import android.telecom.TelecomManager;
 import android.telecom.VideoProfile;
 import android.telephony.PhoneNumberUtils;
-import android.text.format.DateUtils;
 import android.text.TextUtils;
-import android.text.format.DateUtils;
 import android.view.ContextThemeWrapper;
 import android.view.Display;
-import android.text.format.DateUtils;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -98,6 +95,7 @@ public class CallCardFragment extends BaseFragment<CallCardPresenter, CallCardPr
     private View mCallNumberAndLabel;
     private ImageView mPhoto;
     private TextView mElapsedTime;
+    private ElapsedTimeFormatter mElapsedTimeFormatter;
     private Drawable mPrimaryPhotoDrawable;
 
     // Container view that houses the entire primary call card, including the call buttons
@@ -107,6 +105,7 @@ public class CallCardFragment extends BaseFragment<CallCardPresenter, CallCardPr
     private View mCallButtonsContainer;
     private ImageButton mVBButton;
     private TextView mRecordingTimeLabel;
+    private ElapsedTimeFormatter mRecordingTimeFormatter;
     private TextView mRecordingIcon;
     private View mDetailedCallInfo;
     private TextView mNickName;
@@ -146,7 +145,8 @@ public class CallCardFragment extends BaseFragment<CallCardPresenter, CallCardPr
             new CallRecorder.RecordingProgressListener() {
         @Override
         public void onStartRecording() {
-            mRecordingTimeLabel.setText(DateUtils.formatElapsedTime(0));
+            mRecordingTimeFormatter.reset();
+            mRecordingTimeFormatter.setElapsedTime(mRecordingTimeLabel, 0);
             if (mRecordingTimeLabel.getVisibility() != View.VISIBLE) {
                 AnimUtils.fadeIn(mRecordingTimeLabel, AnimUtils.DEFAULT_DURATION);
             }
@@ -161,10 +161,15 @@ public class CallCardFragment extends BaseFragment<CallCardPresenter, CallCardPr
             AnimUtils.fadeOut(mRecordingIcon, AnimUtils.DEFAULT_DURATION);
         }
 
+        @Override
+        public void onRecordingError() {
+            onStopRecording();
+        }
+
         @Override
         public void onRecordingTimeProgress(final long elapsedTimeMs) {
-            long elapsedSeconds = (elapsedTimeMs + 500) / 1000;
-            mRecordingTimeLabel.setText(DateUtils.formatElapsedTime(elapsedSeconds));
+            // Rounded to the nearest second.
+            mRecordingTimeFormatter.setElapsedTime(mRecordingTimeLabel, elapsedTimeMs + 500);
 
             // make sure this is visible in case we re-loaded the UI for a call in progress
             mRecordingTimeLabel.setVisibility(View.VISIBLE);
@@ -253,6 +258,7 @@ public class CallCardFragment extends BaseFragment<CallCardPresenter, CallCardPr
         mCallNumberAndLabel = view.findViewById(R.id.labelAndNumber);
         mCallTypeLabel = (TextView) view.findViewById(R.id.callTypeLabel);
         mElapsedTime = (TextView) view.findViewById(R.id.elapsedTime);
+        mElapsedTimeFormatter = new ElapsedTimeFormatter(view.getContext());
         mPrimaryCallCardContainer = view.findViewById(R.id.primary_call_info_container);
         mPrimaryCallInfo = (ViewGroup) view.findViewById(R.id.primary_call_banner);
         mCallButtonsContainer = view.findViewById(R.id.callButtonFragment);
@@ -314,6 +320,7 @@ public class CallCardFragment extends BaseFragment<CallCardPresenter, CallCardPr
         }
 
         mRecordingTimeLabel = (TextView) view.findViewById(R.id.recordingTime);
+        mRecordingTimeFormatter = new ElapsedTimeFormatter(view.getContext());
         mRecordingIcon = (TextView) view.findViewById(R.id.recordingIcon);
 
         mDetailedCallInfo = view.findViewById(R.id.detailedCallInfo);
@@ -740,10 +747,8 @@ public class CallCardFragment extends BaseFragment<CallCardPresenter, CallCardPr
             if (mElapsedTime.getVisibility() != View.VISIBLE) {
                 AnimUtils.fadeIn(mElapsedTime, AnimUtils.DEFAULT_DURATION);
             }
-            String callTimeElapsed = DateUtils.formatElapsedTime(duration / 1000);
-            String durationDescription = InCallDateUtils.formatDetailedDuration(duration);
-            mElapsedTime.setText(callTimeElapsed);
-            mElapsedTime.setContentDescription(durationDescription);
+            // Called every second, so this must not allocate.
+            mElapsedTimeFormatter.setElapsedTime(mElapsedTime, duration);
         } else {
             // hide() animation has no effect if it is already hidden.
             AnimUtils.fadeOut(mElapsedTime, AnimUtils.DEFAULT_DURATION);
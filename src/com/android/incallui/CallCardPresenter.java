@@ -59,7 +59,7 @@ import com.google.common.base.Preconditions;
  */
 public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi> implements
         InCallStateListener, IncomingCallListener, InCallDetailsListener,
-        InCallEventListener, AudioModeListener {
+        InCallEventListener, AudioModeListener, OptimisticCallState.Listener {
 
     private static final String TAG = CallCardPresenter.class.getSimpleName();
     private static final long CALL_TIME_UPDATE_INTERVAL_MS = 1000;
@@ -113,7 +113,7 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi> i
             public void run() {
                 updateCallTime();
             }
-        });
+        }, true /* uiOnly */);
     }
 
     public void init(Context context, Call call) {
@@ -148,6 +148,7 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi> i
         InCallPresenter.getInstance().addDetailsListener(this);
         InCallPresenter.getInstance().addInCallEventListener(this);
         AudioModeProvider.getInstance().addListener(this);
+        OptimisticCallState.getInstance().addListener(this);
     }
 
     @Override
@@ -160,6 +161,7 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi> i
         InCallPresenter.getInstance().removeDetailsListener(this);
         InCallPresenter.getInstance().removeInCallEventListener(this);
         AudioModeProvider.getInstance().removeListener(this);
+        OptimisticCallState.getInstance().removeListener(this);
 
         mPrimary = null;
         mPrimaryContactInfo = null;
@@ -348,10 +350,15 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi> i
         return null;
     }
 
+    @Override
+    public void onOptimisticStateChanged() {
+        updatePrimaryCallState();
+    }
+
     private void updatePrimaryCallState() {
         if (getUi() != null && mPrimary != null) {
             getUi().setCallState(
-                    mPrimary.getState(),
+                    OptimisticCallState.getInstance().getState(mPrimary),
                     mPrimary.getVideoState(),
                     mPrimary.getSessionModificationState(),
                     mPrimary.getDisconnectCause(),
@@ -578,7 +585,7 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi> i
                     checkIdpName,
                     nameIsNumber,
                     isForwarded,
-                    mPrimaryContactInfo.label,
+                    getLabelForCall(mPrimaryContactInfo),
                     mPrimaryContactInfo.photo,
                     mPrimaryContactInfo.isSipCall,
                     mPrimaryContactInfo.nickName,
@@ -591,6 +598,16 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi> i
         }
     }
 
+    /**
+     * Gets the label to display for a call, flagging callers that are likely spam.
+     */
+    private String getLabelForCall(ContactCacheEntry contactInfo) {
+        if (contactInfo.isSpamLikely) {
+            return mContext.getString(R.string.label_spam_likely);
+        }
+        return contactInfo.label;
+    }
+
     private final String checkIdp(String number, boolean nameIsNumber, boolean isIncoming) {
         if (mContext.getResources().getBoolean(R.bool.def_incallui_checkidp_enabled)
                 && isCDMAPhone(getActiveSubscription()) && isIncoming && nameIsNumber) {
@@ -650,7 +667,7 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi> i
                     true /* show */,
                     name,
                     nameIsNumber,
-                    mSecondaryContactInfo.label,
+                    getLabelForCall(mSecondaryContactInfo),
                     getCallProviderLabel(mSecondary),
                     false /* isConference */);
         } else {
@@ -27,7 +27,6 @@ import android.telecom.Phone;
 import android.telecom.PhoneAccountHandle;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
-import android.text.TextUtils;
 
 import com.android.internal.telephony.PhoneConstants;
 
@@ -789,8 +788,10 @@ public class CallList implements InCallPhoneListener {
     }
 
     public Call getCallWithStateAndNumber(int state, String number) {
+        final NormalizedNumber normalizedNumber = new NormalizedNumber(number);
         for (Call call : mCallById.values()) {
-            if (TextUtils.equals(call.getNumber(), number) && call.getState() == state) {
+            if (call.getState() == state
+                    && call.getNormalizedNumber().matches(normalizedNumber)) {
                 return call;
             }
         }
@@ -21,9 +21,12 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.text.TextUtils;
 import android.util.Log;
@@ -34,6 +37,8 @@ import com.android.services.callrecorder.CallRecordingDataStore;
 import com.android.services.callrecorder.common.CallRecording;
 import com.android.services.callrecorder.common.ICallRecorderService;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Date;
 import java.util.HashSet;
 
@@ -42,29 +47,77 @@ import java.util.HashSet;
  *
  * Manages the call recorder service lifecycle.  We bind to the service whenever an active call
  * is established, and unbind when all calls have been disconnected.
+ *
+ * The state of the recording is kept here rather than asked of the service: the active
+ * recording, with its start time, is fetched once when recording starts (or when we bind to
+ * a service that is already recording), progress is computed locally, and listeners are told
+ * when recording starts, stops or is lost because the service died.
+ *
+ * Calls into the service are made on a worker thread, so that a slow recorder can't block the
+ * UI; {@link #startRecording} and {@link #finishRecording} only queue a command. Toggles
+ * collapse in the queue: asking for the state that was already asked for is a no-op, and
+ * asking for the opposite state removes the command that hasn't run yet, so at most one
+ * start and one stop are ever queued. Listeners hear the outcome on the main thread.
+ *
+ * Every stretch of recording is also written to a {@link RecordingIndex} as it starts and
+ * stops. Segments a crash left open are closed, or adopted if the service is still recording
+ * them, when we next bind to the service.
  */
 public class CallRecorder implements CallList.Listener {
     public static final String TAG = "CallRecorder";
 
+    private static final int MSG_START = 1;
+    private static final int MSG_STOP = 2;
+    private static final int MSG_SYNC = 3;
+    private static final int MSG_OPEN_INDEX = 4;
+    private static final int MSG_SYNC_INDEX = 5;
+    private static final int MSG_CLOSE_SEGMENT = 6;
+
+    private static final String INDEX_FILE = "recording_index";
+
     private static CallRecorder sInstance = null;
 
     private Context mContext;
     private boolean mInitialized = false;
-    private ICallRecorderService mService = null;
+    private volatile ICallRecorderService mService = null;
+    private CallRecording mActiveRecording = null;
+    // The recording a queued stop is for.
+    private CallRecording mStoppingRecording = null;
+    // What was last asked for, which the worker may not have done yet.
+    private boolean mRecordingRequested = false;
+    private String mRequestedNumber = null;
+    // Numbers each start asked for, so that results of earlier ones can be told apart.
+    private int mStartGeneration = 0;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Handler mWorkerHandler;
+    private final LatencyHistogram mStartLatencies = new LatencyHistogram("recording start");
+    // Only used on the worker thread.
+    private RecordingIndex mIndex;
+    private RecordingIndex.Segment mOpenSegment;
 
     private HashSet<RecordingProgressListener> mProgressListeners =
             new HashSet<RecordingProgressListener>();
-    private Handler mHandler = new Handler();
 
     private ServiceConnection mConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             mService = ICallRecorderService.Stub.asInterface(service);
+            // Pick up a recording started before we bound, e.g. by a previous UI process.
+            mWorkerHandler.sendEmptyMessage(MSG_SYNC);
         }
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
             mService = null;
+            if (mActiveRecording != null) {
+                Log.w(TAG, "Call recorder service died while recording");
+                mRecordingRequested = false;
+                mWorkerHandler.sendEmptyMessage(MSG_CLOSE_SEGMENT);
+                Toast.makeText(mContext, R.string.call_recording_stopped_message,
+                        Toast.LENGTH_SHORT).show();
+                onRecordingFailed();
+            }
         }
     };
 
@@ -81,10 +134,47 @@ public class CallRecorder implements CallList.Listener {
 
     private CallRecorder() {
         CallList.getInstance().addListener(this);
+
+        final HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mWorkerHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_START:
+                        doStartRecording((StartCommand) msg.obj);
+                        break;
+                    case MSG_STOP:
+                        doStopRecording();
+                        break;
+                    case MSG_SYNC:
+                        doSync();
+                        break;
+                    case MSG_OPEN_INDEX:
+                        openIndex((File) msg.obj);
+                        break;
+                    case MSG_SYNC_INDEX:
+                        if (mIndex != null) {
+                            mIndex.sync();
+                        }
+                        break;
+                    case MSG_CLOSE_SEGMENT:
+                        if (mOpenSegment != null) {
+                            closeSegmentInterrupted(mOpenSegment);
+                            mOpenSegment = null;
+                        }
+                        break;
+                }
+            }
+        };
     }
 
     public void setUp(Context context) {
-        mContext = context.getApplicationContext();
+        if (mContext == null) {
+            mContext = context.getApplicationContext();
+            mWorkerHandler.obtainMessage(MSG_OPEN_INDEX,
+                    new File(mContext.getFilesDir(), INDEX_FILE)).sendToTarget();
+        }
     }
 
     private void initialize() {
@@ -97,85 +187,298 @@ public class CallRecorder implements CallList.Listener {
 
     private void uninitialize() {
         if (mInitialized) {
+            Log.d(TAG, "Unbinding, " + mStartLatencies);
             mContext.unbindService(mConnection);
+            mWorkerHandler.sendEmptyMessage(MSG_SYNC_INDEX);
             mInitialized = false;
         }
     }
 
-    public boolean startRecording(final String phoneNumber, final long creationTime) {
+    /**
+     * Asks for the call to be recorded. Listeners are told when recording has started, or
+     * {@link RecordingProgressListener#onRecordingError} if it couldn't be.
+     *
+     * @return whether the request was queued.
+     */
+    public boolean startRecording(final String callId, final String phoneNumber,
+            final long creationTime) {
         if (mService == null) {
             return false;
         }
+        if (mRecordingRequested) {
+            return true;
+        }
+
+        mRecordingRequested = true;
+        mRequestedNumber = phoneNumber;
+        if (mWorkerHandler.hasMessages(MSG_STOP) && mStoppingRecording != null
+                && TextUtils.equals(mStoppingRecording.phoneNumber, phoneNumber)) {
+            // Still recording; the stop that hasn't run yet is all that needs undoing.
+            mWorkerHandler.removeMessages(MSG_STOP);
+            mActiveRecording = mStoppingRecording;
+            mStoppingRecording = null;
+            notifyStarted();
+            return true;
+        }
+        mWorkerHandler.obtainMessage(MSG_START, new StartCommand(++mStartGeneration,
+                callId, phoneNumber, creationTime)).sendToTarget();
+        return true;
+    }
+
+    public boolean isRecording() {
+        return mActiveRecording != null;
+    }
+
+    /**
+     * @return whether recording was asked for and not stopped since, even if the recorder
+     * hasn't started yet.
+     */
+    public boolean isRecordingRequested() {
+        return mRecordingRequested;
+    }
 
+    public CallRecording getActiveRecording() {
+        return mActiveRecording;
+    }
+
+    /**
+     * Stops recording. Listeners are told right away; the recording is stopped and saved in
+     * the background.
+     */
+    public void finishRecording() {
+        if (!mRecordingRequested) {
+            return;
+        }
+        mRecordingRequested = false;
+        mRequestedNumber = null;
+        if (mWorkerHandler.hasMessages(MSG_START)) {
+            // Never started, so there is nothing to stop.
+            mWorkerHandler.removeMessages(MSG_START);
+        } else {
+            mStoppingRecording = mActiveRecording;
+            mWorkerHandler.sendEmptyMessage(MSG_STOP);
+        }
+        mActiveRecording = null;
+        TickScheduler.getInstance().unsubscribe(mUpdateRecordingProgressTask);
+        for (RecordingProgressListener l : mProgressListeners) {
+            l.onStopRecording();
+        }
+    }
+
+    /** Runs on the main thread once the service has started recording. */
+    private void onRecordingStarted(CallRecording recording) {
+        if (!mRecordingRequested) {
+            // Stopped while the start was running.
+            mStoppingRecording = recording;
+            if (!mWorkerHandler.hasMessages(MSG_STOP)) {
+                mWorkerHandler.sendEmptyMessage(MSG_STOP);
+            }
+            return;
+        }
+        mActiveRecording = recording;
+        notifyStarted();
+    }
+
+    private void notifyStarted() {
+        for (RecordingProgressListener l : mProgressListeners) {
+            l.onStartRecording();
+        }
+        mUpdateRecordingProgressTask.onTick();
+        TickScheduler.getInstance().subscribe(mUpdateRecordingProgressTask,
+                UPDATE_INTERVAL, UPDATE_INTERVAL, true /* uiOnly */);
+    }
+
+    /** Runs on the main thread when recording couldn't start or stopped by itself. */
+    private void onRecordingFailed() {
+        mActiveRecording = null;
+        mRequestedNumber = null;
+        TickScheduler.getInstance().unsubscribe(mUpdateRecordingProgressTask);
+        for (RecordingProgressListener l : mProgressListeners) {
+            l.onRecordingError();
+        }
+    }
+
+    /** Runs on the worker thread. */
+    private void doStartRecording(final StartCommand command) {
+        final ICallRecorderService service = mService;
+        CallRecording active = null;
         try {
-            if (mService.startRecording(phoneNumber, creationTime)) {
-                for (RecordingProgressListener l : mProgressListeners) {
-                    l.onStartRecording();
+            if (service != null && service.startRecording(command.phoneNumber,
+                    command.creationTime)) {
+                mStartLatencies.add(SystemClock.elapsedRealtime() - command.requestTime);
+                // The only time we need to ask; everything after is computed from this.
+                active = service.getActiveRecording();
+                if (active == null) {
+                    Log.w(TAG, "Recording started but not active");
+                } else {
+                    indexStart(command.callId, active);
                 }
-                mUpdateRecordingProgressTask.run();
-                return true;
-            } else {
-                Toast.makeText(mContext, R.string.call_recording_failed_message,
-                        Toast.LENGTH_SHORT).show();
             }
         } catch (RemoteException e) {
-            Log.w(TAG, "Failed to start recording " + phoneNumber + ", " +
-                    new Date(creationTime), e);
+            Log.w(TAG, "Failed to start recording " + command.phoneNumber + ", " +
+                    new Date(command.creationTime), e);
         }
 
-        return false;
+        final CallRecording recording = active;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (command.generation != mStartGeneration) {
+                    // Stopped and started again since; the stop queued in between follows
+                    // this start on the worker.
+                    return;
+                }
+                if (recording != null) {
+                    onRecordingStarted(recording);
+                    return;
+                }
+                if (mRecordingRequested) {
+                    mRecordingRequested = false;
+                    Toast.makeText(mContext, R.string.call_recording_failed_message,
+                            Toast.LENGTH_SHORT).show();
+                    onRecordingFailed();
+                }
+            }
+        });
     }
 
-    public boolean isRecording() {
-        if (mService == null) {
-            return false;
+    /** Runs on the worker thread. */
+    private void doStopRecording() {
+        final ICallRecorderService service = mService;
+        if (service == null) {
+            return;
         }
-
         try {
-            return mService.isRecording();
+            final CallRecording recording = service.stopRecording();
+            indexStop(recording);
+            if (recording != null) {
+                CallRecordingDataStore dataStore = new CallRecordingDataStore();
+                dataStore.open(mContext);
+                dataStore.putRecording(recording);
+                dataStore.close();
+            }
         } catch (RemoteException e) {
-            Log.w(TAG, "Exception checking recording status", e);
+            Log.w(TAG, "Failed to stop recording", e);
         }
-        return false;
     }
 
-    public CallRecording getActiveRecording() {
-        if (mService == null) {
-            return null;
+    /** Runs on the worker thread. */
+    private void doSync() {
+        final ICallRecorderService service = mService;
+        if (service == null) {
+            return;
         }
-
         try {
-            return mService.getActiveRecording();
+            final CallRecording active = service.getActiveRecording();
+            recoverIndex(active);
+            if (active == null) {
+                return;
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mActiveRecording == null && !mRecordingRequested) {
+                        mRecordingRequested = true;
+                        mRequestedNumber = active.phoneNumber;
+                        onRecordingStarted(active);
+                    }
+                }
+            });
         } catch (RemoteException e) {
-            Log.w("Exception getting active recording", e);
+            Log.w(TAG, "Exception getting active recording", e);
         }
-        return null;
     }
 
-    public void finishRecording() {
-        if (mService != null) {
-            try {
-                final CallRecording recording = mService.stopRecording();
-                if (recording != null) {
-                    new Thread(new Runnable() {
-                        @Override
-                        public void run() {
-                            CallRecordingDataStore dataStore = new CallRecordingDataStore();
-                            dataStore.open(mContext);
-                            dataStore.putRecording(recording);
-                            dataStore.close();
-                        }
-                    }).start();
-                }
-            } catch (RemoteException e) {
-                Log.w(TAG, "Failed to stop recording", e);
+    /** Runs on the worker thread. */
+    private void openIndex(File file) {
+        final RecordingIndex index = new RecordingIndex(file, mWorkerHandler);
+        try {
+            index.open();
+            mIndex = index;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open recording index", e);
+            index.close();
+        }
+    }
+
+    /**
+     * Closes the segments a crash left open, except the one the service is still recording,
+     * which becomes the open segment again. Runs on the worker thread.
+     */
+    private void recoverIndex(CallRecording active) {
+        if (mIndex == null) {
+            return;
+        }
+        final String activePath = active != null ? active.getFile().getAbsolutePath() : null;
+        for (RecordingIndex.Segment segment : mIndex.getOpenSegments()) {
+            if (segment == mOpenSegment) {
+                continue;
+            }
+            if (mOpenSegment == null && TextUtils.equals(segment.fileName, activePath)) {
+                Log.d(TAG, "Resuming recording segment " + segment.id);
+                mOpenSegment = segment;
+            } else {
+                closeSegmentInterrupted(segment);
             }
         }
+    }
 
-        for (RecordingProgressListener l : mProgressListeners) {
-            l.onStopRecording();
+    /** Runs on the worker thread. */
+    private void indexStart(String callId, CallRecording recording) {
+        if (mIndex == null) {
+            return;
+        }
+        if (mOpenSegment != null) {
+            closeSegmentInterrupted(mOpenSegment);
+        }
+        final File file = recording.getFile();
+        try {
+            mOpenSegment = mIndex.appendStart(callId, recording.phoneNumber,
+                    file.getAbsolutePath(), recording.startRecordingTime, file.length());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to index recording start", e);
+            mOpenSegment = null;
+        }
+    }
+
+    /** Runs on the worker thread. */
+    private void indexStop(CallRecording recording) {
+        if (mIndex == null || mOpenSegment == null) {
+            return;
+        }
+        final File file = recording != null ? recording.getFile()
+                : new File(mOpenSegment.fileName);
+        try {
+            mIndex.appendStop(mOpenSegment, System.currentTimeMillis(), file.length(), false);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to index recording stop", e);
+        }
+        mOpenSegment = null;
+    }
+
+    /** Runs on the worker thread. */
+    private void closeSegmentInterrupted(RecordingIndex.Segment segment) {
+        Log.w(TAG, "Closing interrupted recording segment " + segment.id);
+        try {
+            mIndex.closeInterrupted(segment, new File(segment.fileName));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to index interrupted recording", e);
+        }
+    }
+
+    private static final class StartCommand {
+        final int generation;
+        final String callId;
+        final String phoneNumber;
+        final long creationTime;
+        final long requestTime = SystemClock.elapsedRealtime();
+
+        StartCommand(int generation, String callId, String phoneNumber, long creationTime) {
+            this.generation = generation;
+            this.callId = callId;
+            this.phoneNumber = phoneNumber;
+            this.creationTime = creationTime;
         }
-        mHandler.removeCallbacks(mUpdateRecordingProgressTask);
     }
 
     //
@@ -193,10 +496,9 @@ public class CallRecorder implements CallList.Listener {
             initialize();
         } else {
             // we can come down this branch to resume a call that was on hold
-            CallRecording active = getActiveRecording();
-            if (active != null) {
+            if (mRecordingRequested) {
                 Call call = callList.getCallWithStateAndNumber(Call.State.ONHOLD,
-                        active.phoneNumber);
+                        mRequestedNumber);
                 if (call != null) {
                     // The call associated with the active recording has been placed
                     // on hold, so stop the recording.
@@ -208,8 +510,7 @@ public class CallRecorder implements CallList.Listener {
 
     @Override
     public void onDisconnect(final Call call) {
-        CallRecording active = getActiveRecording();
-        if (active != null && TextUtils.equals(call.getNumber(), active.phoneNumber)) {
+        if (mRecordingRequested && TextUtils.equals(call.getNumber(), mRequestedNumber)) {
             // finish the current recording if the call gets disconnected
             finishRecording();
         }
@@ -227,6 +528,11 @@ public class CallRecorder implements CallList.Listener {
     public interface RecordingProgressListener {
         public void onStartRecording();
         public void onStopRecording();
+        /**
+         * Recording couldn't be started, or stopped without being asked to, e.g. because
+         * the service died.
+         */
+        public void onRecordingError();
         public void onRecordingTimeProgress(long elapsedTimeMs);
     }
 
@@ -238,19 +544,18 @@ public class CallRecorder implements CallList.Listener {
         mProgressListeners.remove(listener);
     }
 
-    private static final int UPDATE_INTERVAL = 500;
+    private static final int UPDATE_INTERVAL = 1000;
 
-    private Runnable mUpdateRecordingProgressTask = new Runnable() {
+    private TickScheduler.Listener mUpdateRecordingProgressTask = new TickScheduler.Listener() {
         @Override
-        public void run() {
-            CallRecording active = getActiveRecording();
+        public void onTick() {
+            CallRecording active = mActiveRecording;
             if (active != null) {
                 long elapsed = System.currentTimeMillis() - active.startRecordingTime;
                 for (RecordingProgressListener l : mProgressListeners) {
                     l.onRecordingTimeProgress(elapsed);
                 }
             }
-            mHandler.postDelayed(mUpdateRecordingProgressTask, UPDATE_INTERVAL);
         }
     };
 }
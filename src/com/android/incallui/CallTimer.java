@@ -18,27 +18,30 @@ package com.android.incallui;
 
 import com.google.common.base.Preconditions;
 
-import android.os.Handler;
-import android.os.SystemClock;
-
 /**
  * Helper class used to keep track of events requiring regular intervals.
+ *
+ * Ticks come from the shared {@link TickScheduler}, on whole seconds of wall clock time.
  */
-public class CallTimer extends Handler {
-    private Runnable mInternalCallback;
-    private Runnable mCallback;
-    private long mLastReportedTime;
-    private long mInterval;
+public class CallTimer implements TickScheduler.Listener {
+    private final Runnable mCallback;
+    private final boolean mUiOnly;
     private boolean mRunning;
 
     public CallTimer(Runnable callback) {
+        this(callback, false);
+    }
+
+    /**
+     * @param uiOnly Whether the callback only updates the in-call UI, so that it can be
+     * suspended while the UI is hidden.
+     */
+    public CallTimer(Runnable callback, boolean uiOnly) {
         Preconditions.checkNotNull(callback);
 
-        mInterval = 0;
-        mLastReportedTime = 0;
         mRunning = false;
         mCallback = callback;
-        mInternalCallback = new CallTimerCallback();
+        mUiOnly = uiOnly;
     }
 
     public boolean start(long interval) {
@@ -49,42 +52,26 @@ public class CallTimer extends Handler {
         // cancel any previous timer
         cancel();
 
-        mInterval = interval;
-        mLastReportedTime = SystemClock.uptimeMillis();
-
         mRunning = true;
-        periodicUpdateTimer();
+        TickScheduler.getInstance().subscribe(this, interval, 0, mUiOnly);
+
+        // Run the callback
+        mCallback.run();
 
         return true;
     }
 
     public void cancel() {
-        removeCallbacks(mInternalCallback);
-        mRunning = false;
-    }
-
-    private void periodicUpdateTimer() {
-        if (!mRunning) {
-            return;
-        }
-
-        final long now = SystemClock.uptimeMillis();
-        long nextReport = mLastReportedTime + mInterval;
-        while (now >= nextReport) {
-            nextReport += mInterval;
+        if (mRunning) {
+            TickScheduler.getInstance().unsubscribe(this);
+            mRunning = false;
         }
-
-        postAtTime(mInternalCallback, nextReport);
-        mLastReportedTime = nextReport;
-
-        // Run the callback
-        mCallback.run();
     }
 
-    private class CallTimerCallback implements Runnable {
-        @Override
-        public void run() {
-            periodicUpdateTimer();
+    @Override
+    public void onTick() {
+        if (mRunning) {
+            mCallback.run();
         }
     }
 }
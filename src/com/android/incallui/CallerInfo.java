@@ -24,12 +24,16 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
+import android.provider.ContactsContract.CommonDataKinds.Nickname;
+import android.provider.ContactsContract.CommonDataKinds.Organization;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.PhoneLookup;
 import android.provider.ContactsContract.RawContacts;
 import android.telephony.PhoneNumberUtils;
+import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
 
 import com.google.i18n.phonenumbers.geocoding.PhoneNumberOfflineGeocoder;
@@ -50,6 +54,15 @@ public class CallerInfo {
     private static final Uri CONTENT_URI = Uri.parse("content://geocoded_location/location");
     private static final String METHOD_GET_LOCATION = "getLocation";
     private static final String RESULT_LOCATION = "location";
+
+    private static final String[] DETAILED_INFO_PROJECTION = new String[] {
+        Data.MIMETYPE,
+        Nickname.NAME,
+        Organization.COMPANY,
+        Organization.TITLE,
+        StructuredPostal.CITY
+    };
+
     /**
      * Please note that, any one of these member variables can be null,
      * and any accesses to them should be prepared to handle such a case.
@@ -113,6 +126,13 @@ public class CallerInfo {
     public Uri contactRingtoneUri;
     public boolean shouldSendToVoicemail;
 
+    // Detailed contact data, filled in by updateDetailedInfo() on the
+    // query worker thread right after the PhoneLookup query.
+    public String nickName;
+    public String organization;
+    public String position;
+    public String city;
+
     /**
      * Drawable representing the caller image.  This is essentially
      * a cache for the image data tied into the connection /
@@ -307,6 +327,57 @@ public class CallerInfo {
         return previousResult;
     }
 
+    /**
+     * Fills in the nickname, organization, position and city fields for the
+     * contact this CallerInfo was resolved to.
+     *
+     * This does a provider query, so it must not be called from the UI thread.
+     * It is run by the CallerInfoAsyncQuery worker directly after the
+     * PhoneLookup query, so both results reach the UI in a single callback.
+     *
+     * @param context the context used to get the ContentResolver
+     */
+    /* package */ void updateDetailedInfo(Context context) {
+        if (!contactExists || contactIdOrZero == 0) {
+            return;
+        }
+
+        final String where = Data.CONTACT_ID + " = " + contactIdOrZero;
+        Cursor cursor = context.getContentResolver().query(Data.CONTENT_URI,
+                DETAILED_INFO_PROJECTION, where, null, null);
+        if (cursor == null) {
+            return;
+        }
+
+        try {
+            int mimeTypeColumnIndex = cursor.getColumnIndex(Data.MIMETYPE);
+            int orgColumnIndex = cursor.getColumnIndex(Organization.COMPANY);
+            int positionColumnIndex = cursor.getColumnIndex(Organization.TITLE);
+            int nickNameColumnIndex = cursor.getColumnIndex(Nickname.NAME);
+            int cityColumnIndex = cursor.getColumnIndex(StructuredPostal.CITY);
+
+            while (cursor.moveToNext()) {
+                final String mimeType = cursor.getString(mimeTypeColumnIndex);
+                if (TextUtils.equals(mimeType, Organization.CONTENT_ITEM_TYPE)) {
+                    if (!cursor.isNull(orgColumnIndex)) {
+                        organization = cursor.getString(orgColumnIndex);
+                    }
+                    if (!cursor.isNull(positionColumnIndex)) {
+                        position = cursor.getString(positionColumnIndex);
+                    }
+                } else if (TextUtils.equals(mimeType, Nickname.CONTENT_ITEM_TYPE)
+                        && !cursor.isNull(nickNameColumnIndex)) {
+                    nickName = cursor.getString(nickNameColumnIndex);
+                } else if (TextUtils.equals(mimeType, StructuredPostal.CONTENT_ITEM_TYPE)
+                        && !cursor.isNull(cityColumnIndex)) {
+                    city = cursor.getString(cityColumnIndex);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     // Accessors
 
     /**
@@ -466,7 +537,32 @@ public class CallerInfo {
      *        this specifies a fallback number to use instead.
      */
     public void updateGeoDescription(Context context, String fallbackNumber) {
+        updateGeoDescription(context, fallbackNumber, SubscriptionManager.getDefaultVoiceSubId());
+    }
+
+    /**
+     * Same as {@link #updateGeoDescription(Context, String)}, resolving the country
+     * of the number through the given subscription. Results are served from
+     * {@link GeoDescriptionCache} when the number, or one sharing its prefix, was
+     * described before.
+     *
+     * @param subId the subscription the call is on
+     */
+    public void updateGeoDescription(Context context, String fallbackNumber, int subId) {
         String number = TextUtils.isEmpty(phoneNumber) ? fallbackNumber : phoneNumber;
+        if (TextUtils.isEmpty(number)) {
+            geoDescription = null;
+            return;
+        }
+
+        final GeoDescriptionCache cache = GeoDescriptionCache.getInstance();
+        final Locale locale = context.getResources().getConfiguration().locale;
+        final String countryIso = cache.getCountryIso(context, subId);
+        if (cache.contains(locale, countryIso, number)) {
+            geoDescription = cache.getDescription(locale, countryIso, number);
+            return;
+        }
+
         String address = null;
         if (context.getContentResolver().acquireProvider(CONTENT_URI) != null) {
             Bundle result = context.getContentResolver().call(CONTENT_URI, METHOD_GET_LOCATION,
@@ -475,14 +571,16 @@ public class CallerInfo {
                 address = result.getString(RESULT_LOCATION);
             }
         }
-        geoDescription = (address == null ? getGeoDescription(context, number) : address);
+        geoDescription = (address == null
+                ? getGeoDescription(number, countryIso, locale) : address);
+        cache.putDescription(locale, countryIso, number, geoDescription);
     }
 
     /**
      * @return a geographical description string for the specified number.
      * @see com.android.i18n.phonenumbers.PhoneNumberOfflineGeocoder
      */
-    private static String getGeoDescription(Context context, String number) {
+    private static String getGeoDescription(String number, String countryIso, Locale locale) {
         Log.v(TAG, "getGeoDescription('" + number + "')...");
 
         if (TextUtils.isEmpty(number)) {
@@ -492,8 +590,6 @@ public class CallerInfo {
         PhoneNumberUtil util = PhoneNumberUtil.getInstance();
         PhoneNumberOfflineGeocoder geocoder = PhoneNumberOfflineGeocoder.getInstance();
 
-        Locale locale = context.getResources().getConfiguration().locale;
-        String countryIso = TelephonyManagerUtils.getCurrentCountryIso(context, locale);
         PhoneNumber pn = null;
         try {
             Log.v(TAG, "parsing '" + number
@@ -26,15 +26,12 @@ import android.os.Looper;
 import android.os.Message;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.PhoneLookup;
-import android.telephony.PhoneNumberUtils;
 import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
 
 import com.android.contacts.common.util.PhoneNumberHelper;
-import com.android.contacts.common.util.TelephonyManagerUtils;
 
 import java.util.Arrays;
-import java.util.Locale;
 
 /**
  * Helper class to make it easier to run asynchronous caller-id lookup queries.
@@ -79,6 +76,11 @@ public class CallerInfoAsyncQuery {
         public Object cookie;
         public int event;
         public String number;
+        public int subId;
+        // For the worker thread, which can't use mQueryContext since release() clears it.
+        public Context context;
+        // Result of the contact lookup, resolved on the worker thread.
+        public CallerInfo callerInfo;
     }
 
 
@@ -166,7 +168,7 @@ public class CallerInfoAsyncQuery {
                     switch (cw.event) {
                         case EVENT_NEW_QUERY:
                             //start the sql command.
-                            super.handleMessage(msg);
+                            runContactQuery(msg, args, cw);
                             break;
 
                         // shortcuts to avoid query for recognized numbers.
@@ -189,6 +191,45 @@ public class CallerInfoAsyncQuery {
                     }
                 }
             }
+
+            /**
+             * Runs the PhoneLookup query, the secondary lookup of numeric SIP usernames
+             * and, in the same worker pass, the detailed contact data query for the
+             * matched contact. The result is carried back to the UI thread in the cookie
+             * so the call card is populated by a single onQueryComplete() instead of a
+             * second provider round trip.
+             */
+            private void runContactQuery(Message msg, WorkerArgs args, CookieWrapper cw) {
+                final Context context = cw.context;
+                if (context == null) {
+                    super.handleMessage(msg);
+                    return;
+                }
+
+                Cursor cursor = null;
+                try {
+                    cursor = context.getContentResolver().query(args.uri, args.projection,
+                            args.selection, args.selectionArgs, args.orderBy);
+                } catch (Exception e) {
+                    Log.w(this, "Exception thrown during contact lookup: " + e);
+                }
+
+                // getCallerInfo() closes the cursor.
+                CallerInfo info = CallerInfo.getCallerInfo(context, args.uri, cursor);
+                final CallerInfo secondaryInfo = CallerInfo.doSecondaryLookupIfNecessary(
+                        context, cw.number, info);
+                if (secondaryInfo != info) {
+                    Log.d(this, "Contact looked up again with numeric SIP username");
+                    info = secondaryInfo;
+                }
+                info.updateDetailedInfo(context);
+                cw.callerInfo = info;
+
+                Message reply = args.handler.obtainMessage(msg.what);
+                reply.obj = args;
+                reply.arg1 = msg.arg1;
+                reply.sendToTarget();
+            }
         }
 
 
@@ -254,15 +295,22 @@ public class CallerInfoAsyncQuery {
                     } else if (cw.event == EVENT_VOICEMAIL_NUMBER) {
                         mCallerInfo = new CallerInfo().markAsVoiceMail(mQueryContext);
                     } else {
-                        mCallerInfo = CallerInfo.getCallerInfo(mQueryContext, mQueryUri, cursor);
-                        Log.d(this, "==> Got mCallerInfo: " + mCallerInfo);
-
-                        CallerInfo newCallerInfo = CallerInfo.doSecondaryLookupIfNecessary(
-                                mQueryContext, cw.number, mCallerInfo);
-                        if (newCallerInfo != mCallerInfo) {
-                            mCallerInfo = newCallerInfo;
-                            Log.d(this, "#####async contact look up with numeric username"
-                                    + mCallerInfo);
+                        if (cw.callerInfo != null) {
+                            // Already looked up again on the worker thread if necessary.
+                            mCallerInfo = cw.callerInfo;
+                            Log.d(this, "==> Got mCallerInfo: " + mCallerInfo);
+                        } else {
+                            mCallerInfo = CallerInfo.getCallerInfo(mQueryContext, mQueryUri,
+                                    cursor);
+                            Log.d(this, "==> Got mCallerInfo: " + mCallerInfo);
+
+                            CallerInfo newCallerInfo = CallerInfo.doSecondaryLookupIfNecessary(
+                                    mQueryContext, cw.number, mCallerInfo);
+                            if (newCallerInfo != mCallerInfo) {
+                                mCallerInfo = newCallerInfo;
+                                Log.d(this, "#####async contact look up with numeric username"
+                                        + mCallerInfo);
+                            }
                         }
 
                         // Final step: look up the geocoded description.
@@ -283,7 +331,7 @@ public class CallerInfoAsyncQuery {
                                 // the CallerInfo object is totally blank here (i.e. no name
                                 // *or* phoneNumber).  So we need to pass in cw.number as
                                 // a fallback number.
-                                mCallerInfo.updateGeoDescription(mQueryContext, cw.number);
+                                mCallerInfo.updateGeoDescription(mQueryContext, cw.number, cw.subId);
                             }
                         }
 
@@ -291,8 +339,8 @@ public class CallerInfoAsyncQuery {
                         if (!TextUtils.isEmpty(cw.number)) {
                             mCallerInfo.phoneNumber = PhoneNumberHelper.formatNumber(cw.number,
                                     mCallerInfo.normalizedNumber,
-                                    TelephonyManagerUtils.getCurrentCountryIso(mQueryContext,
-                                            Locale.getDefault()));
+                                    GeoDescriptionCache.getInstance().getCountryIso(
+                                            mQueryContext, cw.subId));
                         }
                     }
 
@@ -343,11 +391,20 @@ public class CallerInfoAsyncQuery {
         Log.d(LOG_TAG, "- cookie: " + cookie);
 
         // Construct the URI object and query params, and start the query.
+        // Reuse the call's parsed number when the query is for it.
+        Call call = (Call) cookie;
+        final boolean isSip;
+        if (call != null
+                && TextUtils.equals(call.getNormalizedNumber().getNumber(), info.phoneNumber)) {
+            isSip = call.getNormalizedNumber().isSip();
+        } else {
+            isSip = PhoneNumberHelper.isUriNumber(info.phoneNumber);
+        }
 
         final Uri contactRef = PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI.buildUpon()
                 .appendPath(info.phoneNumber)
                 .appendQueryParameter(PhoneLookup.QUERY_PARAMETER_SIP_ADDRESS,
-                        String.valueOf(PhoneNumberHelper.isUriNumber(info.phoneNumber)))
+                        String.valueOf(isSip))
                 .build();
 
         if (DBG) {
@@ -362,14 +419,16 @@ public class CallerInfoAsyncQuery {
         cw.listener = listener;
         cw.cookie = cookie;
         cw.number = info.phoneNumber;
+        cw.context = context;
 
         int subId = SubscriptionManager.getDefaultVoiceSubId();
-        Call call = (Call) cookie;
         if (call != null) {
             subId = call.getSubId();
         }
+        cw.subId = subId;
         // check to see if these are recognized numbers, and use shortcuts if we can.
-        if (PhoneNumberUtils.isLocalEmergencyNumber(context, info.phoneNumber)) {
+        if (NumberClassificationCache.getInstance(context)
+                .isEmergencyNumber(info.phoneNumber, subId)) {
             cw.event = EVENT_EMERGENCY_NUMBER;
         } else if (info.isVoiceMailNumber()) {
             cw.event = EVENT_VOICEMAIL_NUMBER;
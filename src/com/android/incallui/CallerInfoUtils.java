@@ -3,17 +3,21 @@ package com.android.incallui;
 import android.content.Context;
 import android.content.Loader;
 import android.content.Loader.OnLoadCompleteListener;
+import android.content.res.Configuration;
 import android.net.Uri;
 import android.telecom.PhoneAccount;
 import android.telecom.TelecomManager;
-import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.contacts.common.model.Contact;
 import com.android.contacts.common.model.ContactLoader;
+import com.google.common.base.Objects;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
 
 /**
  * Utility methods for contact and caller info related functionality
@@ -22,9 +26,26 @@ public class CallerInfoUtils {
 
     private static final String TAG = CallerInfoUtils.class.getSimpleName();
 
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
     /** Define for not a special CNAP string */
     private static final int CNAP_SPECIAL_CASE_NO = -1;
 
+    /** Special CNAP strings the network may send as the number, and their presentation. */
+    private static final HashMap<String, Integer> CNAP_SPECIAL_CASES =
+            new HashMap<String, Integer>();
+    static {
+        CNAP_SPECIAL_CASES.put("PRIVATE", TelecomManager.PRESENTATION_RESTRICTED);
+        CNAP_SPECIAL_CASES.put("P", TelecomManager.PRESENTATION_RESTRICTED);
+        CNAP_SPECIAL_CASES.put("RES", TelecomManager.PRESENTATION_RESTRICTED);
+        CNAP_SPECIAL_CASES.put("UNAVAILABLE", TelecomManager.PRESENTATION_UNKNOWN);
+        CNAP_SPECIAL_CASES.put("UNKNOWN", TelecomManager.PRESENTATION_UNKNOWN);
+        CNAP_SPECIAL_CASES.put("UNA", TelecomManager.PRESENTATION_UNKNOWN);
+        CNAP_SPECIAL_CASES.put("U", TelecomManager.PRESENTATION_UNKNOWN);
+    }
+
+    private static CnapSpecialCases sCnapSpecialCases;
+
     public CallerInfoUtils() {
     }
 
@@ -60,13 +81,10 @@ public class CallerInfoUtils {
         info.numberPresentation = call.getNumberPresentation();
         info.namePresentation = call.getCnapNamePresentation();
 
-        String number = call.getNumber();
+        final NormalizedNumber normalizedNumber = call.getNormalizedNumber();
+        String number = normalizedNumber.getNumber();
         if (!TextUtils.isEmpty(number)) {
-            final String[] numbers = number.split("&");
-            number = numbers[0];
-            if (numbers.length > 1) {
-                info.forwardingNumber = numbers[1];
-            }
+            info.forwardingNumber = normalizedNumber.getForwardingNumber();
 
             number = modifyForSpecialCnapCases(context, info, number, info.numberPresentation);
             info.phoneNumber = number;
@@ -85,10 +103,7 @@ public class CallerInfoUtils {
     }
 
     public static boolean isVoiceMailNumber(Context context, Call call) {
-         TelecomManager telecomManager =
-                 (TelecomManager) context.getSystemService(Context.TELECOM_SERVICE);
-         return telecomManager.isVoiceMailNumber(
-                 call.getTelecommCall().getDetails().getAccountHandle(), call.getNumber());
+        return NumberClassificationCache.getInstance(context).isVoiceMailNumber(call);
     }
 
     /**
@@ -106,18 +121,20 @@ public class CallerInfoUtils {
         // displayed/logged after this function returns based on the presentation value.
         if (ci == null || number == null) return number;
 
-        Log.d(TAG, "modifyForSpecialCnapCases: initially, number="
-                + toLogSafePhoneNumber(number)
-                + ", presentation=" + presentation + " ci " + ci);
+        if (DEBUG) {
+            Log.d(TAG, "modifyForSpecialCnapCases: initially, number="
+                    + toLogSafePhoneNumber(number)
+                    + ", presentation=" + presentation + " ci " + ci);
+        }
+
+        final CnapSpecialCases specialCases = getCnapSpecialCases(context);
 
         // "ABSENT NUMBER" is a possible value we could get from the network as the
         // phone number, so if this happens, change it to "Unknown" in the CallerInfo
         // and fix the presentation to be the same.
-        final String[] absentNumberValues =
-                context.getResources().getStringArray(R.array.absent_num);
-        if (Arrays.asList(absentNumberValues).contains(number)
-                && presentation == TelecomManager.PRESENTATION_ALLOWED) {
-            number = context.getString(R.string.unknown);
+        if (presentation == TelecomManager.PRESENTATION_ALLOWED
+                && specialCases.absentNumbers.contains(number)) {
+            number = specialCases.unknownString;
             ci.numberPresentation = TelecomManager.PRESENTATION_UNKNOWN;
         }
 
@@ -130,27 +147,61 @@ public class CallerInfoUtils {
                 || (ci.numberPresentation != presentation
                         && presentation == TelecomManager.PRESENTATION_ALLOWED)) {
             // For all special strings, change number & numberPrentation.
-            if (isCnapSpecialCaseRestricted(number)) {
-                number = context.getString(R.string.private_num);
-                ci.numberPresentation = TelecomManager.PRESENTATION_RESTRICTED;
-            } else if (isCnapSpecialCaseUnknown(number)) {
-                number = context.getString(R.string.unknown);
-                ci.numberPresentation = TelecomManager.PRESENTATION_UNKNOWN;
+            final Integer specialPresentation = CNAP_SPECIAL_CASES.get(number);
+            if (specialPresentation != null) {
+                number = specialPresentation == TelecomManager.PRESENTATION_RESTRICTED
+                        ? specialCases.privateString : specialCases.unknownString;
+                ci.numberPresentation = specialPresentation;
             }
-            Log.d(TAG, "SpecialCnap: number=" + toLogSafePhoneNumber(number)
-                    + "; presentation now=" + ci.numberPresentation);
+            if (DEBUG) {
+                Log.d(TAG, "SpecialCnap: number=" + toLogSafePhoneNumber(number)
+                        + "; presentation now=" + ci.numberPresentation);
+            }
+        }
+        if (DEBUG) {
+            Log.d(TAG, "modifyForSpecialCnapCases: returning number string="
+                    + toLogSafePhoneNumber(number));
         }
-        Log.d(TAG, "modifyForSpecialCnapCases: returning number string="
-                + toLogSafePhoneNumber(number));
         return number;
     }
 
-    private static boolean isCnapSpecialCaseRestricted(String n) {
-        return n.equals("PRIVATE") || n.equals("P") || n.equals("RES");
+    /**
+     * Returns the CNAP lookup tables for the current configuration, rebuilding them only
+     * when the locale or the MCC/MNC the resources were resolved for has changed.
+     */
+    private static synchronized CnapSpecialCases getCnapSpecialCases(Context context) {
+        final Configuration config = context.getResources().getConfiguration();
+        if (sCnapSpecialCases == null || !sCnapSpecialCases.isValidFor(config)) {
+            sCnapSpecialCases = new CnapSpecialCases(context, config);
+        }
+        return sCnapSpecialCases;
     }
 
-    private static boolean isCnapSpecialCaseUnknown(String n) {
-        return n.equals("UNAVAILABLE") || n.equals("UNKNOWN") || n.equals("UNA") || n.equals("U");
+    /**
+     * Resource dependent CNAP data, resolved once per configuration.
+     */
+    private static final class CnapSpecialCases {
+        private final Locale locale;
+        private final int mcc;
+        private final int mnc;
+        final HashSet<String> absentNumbers;
+        final String unknownString;
+        final String privateString;
+
+        CnapSpecialCases(Context context, Configuration config) {
+            locale = config.locale;
+            mcc = config.mcc;
+            mnc = config.mnc;
+            absentNumbers = new HashSet<String>(Arrays.asList(
+                    context.getResources().getStringArray(R.array.absent_num)));
+            unknownString = context.getString(R.string.unknown);
+            privateString = context.getString(R.string.private_num);
+        }
+
+        boolean isValidFor(Configuration config) {
+            return Objects.equal(locale, config.locale) && mcc == config.mcc
+                    && mnc == config.mnc;
+        }
     }
 
     /* package */static String toLogSafePhoneNumber(String number) {
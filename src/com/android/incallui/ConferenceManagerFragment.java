@@ -71,6 +71,8 @@ public class ConferenceManagerFragment
                 (int) getResources().getDimension(R.dimen.incall_action_bar_elevation);
         mInflater = LayoutInflater.from(getActivity().getApplicationContext());
 
+        // Hidden until setVisible(true), also when restored after the activity was recreated.
+        parent.setVisibility(View.INVISIBLE);
         return parent;
     }
 
@@ -17,6 +17,8 @@
 package com.android.incallui;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
 import android.telecom.PhoneCapabilities;
 import android.telephony.PhoneNumberUtils;
@@ -343,8 +345,8 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
                 android.telecom.Call.Details.CAPABILITY_DISCONNECT_FROM_CONFERENCE);
 
         setCallerInfoForRow(result, contactCache.name, contactCache.number, contactCache.label,
-                contactCache.lookupKey, contactCache.displayPhotoUri, thisRowCanSeparate,
-                thisRowCanDisconnect);
+                contactCache.lookupKey, contactCache.displayPhotoUri, getAvatar(contactCache),
+                thisRowCanSeparate, thisRowCanDisconnect);
 
         // Tag the row in the conference participant list with the call id to make it easier to
         // find calls when contact cache information is loaded.
@@ -353,6 +355,19 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
         return result;
     }
 
+    /**
+     * Returns the avatar shared with the notification for a participant whose photo has
+     * already been loaded, or {@code null}.
+     */
+    private Bitmap getAvatar(ContactCacheEntry contactCache) {
+        if (!(contactCache.photo instanceof BitmapDrawable)) {
+            return null;
+        }
+        return AvatarStore.getInstance(mContext).getAvatar(contactCache.displayPhotoUri,
+                contactCache.lookupKey, ((BitmapDrawable) contactCache.photo).getBitmap(),
+                true /* circle */);
+    }
+
     /**
      * Replaces the contact info for a participant and triggers a refresh of the UI.
      *
@@ -377,12 +392,13 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
      * @param callerNumberType The participant's phone number typ.e
      * @param lookupKey The lookup key for the participant (for photo lookup).
      * @param photoUri The URI of the contact photo.
+     * @param avatar The contact photo, if already loaded.
      * @param thisRowCanSeparate {@code True} if this participant can separate from the conference.
      * @param thisRowCanDisconnect {@code True} if this participant can be disconnected.
      */
     private final void setCallerInfoForRow(View view, String callerName, String callerNumber,
-            String callerNumberType, String lookupKey, Uri photoUri, boolean thisRowCanSeparate,
-            boolean thisRowCanDisconnect) {
+            String callerNumberType, String lookupKey, Uri photoUri, Bitmap avatar,
+            boolean thisRowCanSeparate, boolean thisRowCanDisconnect) {
 
         final ImageView photoView = (ImageView) view.findViewById(R.id.callerPhoto);
         final TextView nameTextView = (TextView) view.findViewById(R.id.conferenceCallerName);
@@ -406,10 +422,16 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
             separateButton.setOnClickListener(null);
         }
 
-        DefaultImageRequest imageRequest = (photoUri != null) ? null :
-                new DefaultImageRequest(callerName, lookupKey, true /* isCircularPhoto */);
+        if (avatar != null) {
+            mContactPhotoManager.removePhoto(photoView);
+            photoView.setImageBitmap(avatar);
+        } else {
+            DefaultImageRequest imageRequest = (photoUri != null) ? null :
+                    new DefaultImageRequest(callerName, lookupKey, true /* isCircularPhoto */);
 
-        mContactPhotoManager.loadDirectoryPhoto(photoView, photoUri, false, true, imageRequest);
+            mContactPhotoManager.loadDirectoryPhoto(photoView, photoUri, false, true,
+                    imageRequest);
+        }
 
         // set the caller name
         nameTextView.setText(callerName);
@@ -16,24 +16,31 @@
 
 package com.android.incallui;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.database.Cursor;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.provider.CallLog.Calls;
 import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.Data;
-import android.provider.ContactsContract.CommonDataKinds.Nickname;
-import android.provider.ContactsContract.CommonDataKinds.Organization;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
 import android.telecom.TelecomManager;
+import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
+import android.util.LruCache;
 
 import com.android.contacts.common.util.PhoneNumberHelper;
+import com.android.incallui.service.OfflineDirectory;
 import com.android.incallui.service.PhoneNumberService;
+import com.android.incallui.service.SpamScorer;
 import com.android.incalluibind.ServiceFactory;
 import com.android.services.telephony.common.MoreStrings;
 import com.google.common.collect.Maps;
@@ -41,7 +48,10 @@ import com.google.common.collect.Sets;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -50,23 +60,76 @@ import java.util.Set;
  * that it currently has cached from previous queries. This class always gets called from the UI
  * thread so it does not need thread protection.
  */
-public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadCompleteListener {
+public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadCompleteListener,
+        ContactPrefetcher.Listener {
 
     private static final String TAG = ContactInfoCache.class.getSimpleName();
     private static final int TOKEN_UPDATE_PHOTO_FOR_CALL_STATE = 0;
 
-    private static final String[] DETAILED_INFO_PROJECTION = new String[] {
-        Data.MIMETYPE,
-        Nickname.NAME,
-        Organization.COMPANY,
-        Organization.TITLE,
-        StructuredPostal.CITY
-    };
+    /** Set to true to send a second remote lookup when the first one is slow. */
+    private static final String PROPERTY_LOOKUP_HEDGING = "persist.incallui.lookup_hedging";
+    /** Path of the offline caller directory consulted before the remote lookup. */
+    private static final String PROPERTY_CALLER_DIRECTORY = "persist.incallui.caller_directory";
+    private static final String DEFAULT_CALLER_DIRECTORY = "/system/etc/caller_directory.dat";
+
+    /** Incoming calls from a number within this window count towards its call frequency. */
+    private static final long RECENT_CALLS_WINDOW_MS = 60 * 60 * 1000;
+    private static final int MAX_RECENT_CALLERS = 256;
+
+    /** Delay of a prefetch after contacts or the call log changed, or while lookups run. */
+    private static final long PREFETCH_DELAY_MS = 5000;
+    /** Prefetched entries younger than this aren't refreshed when the screen turns on. */
+    private static final long PREFETCH_MAX_AGE_MS = 15 * 60 * 1000;
 
     private final Context mContext;
-    private final PhoneNumberService mPhoneNumberService;
+    private final PhoneNumberLookupExecutor mPhoneNumberService;
+    // Opened in the background when the cache is created; null until then.
+    private volatile OfflineDirectory mOfflineDirectory;
+    private final SpamScorer mSpamScorer;
+    private final HashMap<String, Integer> mSpamScoreByCallId = Maps.newHashMap();
+    // Unlike the maps above, this outlives the call session so that repeated callers are seen.
+    private final LruCache<String, RecentCalls> mRecentIncomingCalls =
+            new LruCache<String, RecentCalls>(MAX_RECENT_CALLERS);
     private final HashMap<String, ContactCacheEntry> mInfoMap = Maps.newHashMap();
     private final HashMap<String, Set<ContactInfoCacheCallback>> mCallBacks = Maps.newHashMap();
+    // Completed lookups by normalized number, so later calls with the same party in this
+    // session don't query again. Keys of the lookups still running are kept per call ID.
+    private final HashMap<String, ContactCacheEntry> mInfoByNumber = Maps.newHashMap();
+    private final HashMap<String, String> mNumberKeyByCallId = Maps.newHashMap();
+    // Entries by number key from the last prefetch. Unlike the maps above, they outlive the
+    // call session; each prefetch replaces them as a whole, so they stay within its budget.
+    private HashMap<String, ContactCacheEntry> mPrefetched = Maps.newHashMap();
+    private ContactPrefetcher mPrefetcher;
+    private boolean mPrefetchTriggersRegistered;
+    private long mPrefetchTime;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LatencyHistogram mPrefetchedRingToName = new LatencyHistogram("prefetched");
+    private final LatencyHistogram mLookedUpRingToName = new LatencyHistogram("looked up");
+
+    private final Runnable mPrefetchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            prefetch();
+        }
+    };
+
+    private final BroadcastReceiver mScreenOnReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (SystemClock.elapsedRealtime() - mPrefetchTime > PREFETCH_MAX_AGE_MS) {
+                prefetch();
+            }
+        }
+    };
+
+    private final ContentObserver mContactsObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            // Changes tend to come in bursts, e.g. during a sync.
+            mHandler.removeCallbacks(mPrefetchRunnable);
+            mHandler.postDelayed(mPrefetchRunnable, PREFETCH_DELAY_MS);
+        }
+    };
 
     private static ContactInfoCache sCache = null;
 
@@ -82,7 +145,11 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
 
     private ContactInfoCache(Context context) {
         mContext = context;
-        mPhoneNumberService = ServiceFactory.newPhoneNumberService(context);
+        final PhoneNumberService service = ServiceFactory.newPhoneNumberService(context);
+        mPhoneNumberService = service == null ? null : new PhoneNumberLookupExecutor(service,
+                SystemProperties.getBoolean(PROPERTY_LOOKUP_HEDGING, false));
+        mSpamScorer = ServiceFactory.newSpamScorer(context);
+        openOfflineDirectory();
     }
 
     public ContactCacheEntry getInfo(String callId) {
@@ -145,11 +212,49 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
             callBacks.add(callback);
             return;
         }
+
+        if (isIncoming) {
+            scoreIncomingCall(call);
+        }
+
+        final String numberKey = getNumberKey(call, isIncoming);
+        if (cacheEntry == null && numberKey != null) {
+            ContactCacheEntry sharedEntry = mInfoByNumber.get(numberKey);
+            if (sharedEntry == null) {
+                sharedEntry = mPrefetched.get(numberKey);
+                if (sharedEntry != null && isIncoming) {
+                    trackRingToName(call, mPrefetchedRingToName);
+                }
+            }
+            if (sharedEntry != null) {
+                Log.d(TAG, "Contact lookup. Number cache hit");
+                // Each call gets its own copy, so that its spam flag, photo and person
+                // reference don't change the entry of other calls.
+                final ContactCacheEntry numberEntry = sharedEntry.copy();
+                mInfoMap.put(callId, numberEntry);
+                applySpamScore(callId, numberEntry);
+                callback.onContactInfoComplete(callId, numberEntry);
+                if (numberEntry.photo == null && numberEntry.displayPhotoUri != null) {
+                    // Prefetched without a photo, load it now.
+                    callBacks = Sets.newHashSet();
+                    callBacks.add(callback);
+                    mCallBacks.put(callId, callBacks);
+                    // Shared again with the photo once it is loaded.
+                    mNumberKeyByCallId.put(callId, numberKey);
+                    ContactsAsyncHelper.startObtainPhotoAsync(TOKEN_UPDATE_PHOTO_FOR_CALL_STATE,
+                            mContext, numberEntry.displayPhotoUri, ContactInfoCache.this, callId);
+                }
+                return;
+            }
+        }
         Log.d(TAG, "Contact lookup. In memory cache miss; searching provider.");
         // New lookup
         callBacks = Sets.newHashSet();
         callBacks.add(callback);
         mCallBacks.put(callId, callBacks);
+        if (numberKey != null) {
+            mNumberKeyByCallId.put(callId, numberKey);
+        }
 
         /**
          * Performs a query for caller information.
@@ -177,19 +282,32 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
         // it has no name or if we found a local contact.
         if (cacheEntry == null || TextUtils.isEmpty(cacheEntry.name) ||
                 callerInfo.contactExists) {
+            final ContactCacheEntry oldEntry = cacheEntry;
             cacheEntry = buildEntry(mContext, callId, callerInfo, presentationMode, isIncoming);
+            if (oldEntry != null) {
+                cacheEntry.copyPersonReference(oldEntry);
+            }
             mInfoMap.put(callId, cacheEntry);
         }
 
         sendInfoNotifications(callId, cacheEntry);
 
+        if (didLocalLookup && isIncoming && callerInfo.contactExists) {
+            trackRingToName(call, mLookedUpRingToName);
+        }
+
         if (didLocalLookup) {
             // Before issuing a request for more data from other services, we only check that the
             // contact wasn't found in the local DB.  We don't check the if the cache entry already
             // has a name because we allow overriding cnap data with data from other services.
             if (!callerInfo.contactExists && cacheEntry.name == null) {
-                Log.d(TAG, "Contact lookup. Local contacts miss, checking remote");
-                if (mPhoneNumberService != null) {
+                final OfflineDirectory.Entry directoryEntry = lookupOfflineDirectory(call);
+                if (directoryEntry != null) {
+                    Log.d(TAG, "Contact lookup. Local contacts miss, offline directory hit");
+                    new PhoneNumberServiceListener(callId).onPhoneNumberInfoComplete(
+                            new DirectoryInfo(cacheEntry.number, directoryEntry));
+                } else if (mPhoneNumberService != null) {
+                    Log.d(TAG, "Contact lookup. Local contacts miss, checking remote");
                     final PhoneNumberServiceListener listener = new PhoneNumberServiceListener(callId);
                     mPhoneNumberService.getPhoneNumberInfo(cacheEntry.number, listener, listener,
                             isIncoming);
@@ -212,6 +330,154 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
         }
     }
 
+    /**
+     * Scores the number of an incoming call for spam, before the contact lookups start so
+     * that the result is ready for the first update of the call card.
+     */
+    private void scoreIncomingCall(Call call) {
+        if (call.getNumberPresentation() != TelecomManager.PRESENTATION_ALLOWED
+                || call.getNormalizedNumber().isSip()) {
+            return;
+        }
+        final String countryIso =
+                GeoDescriptionCache.getInstance().getCountryIso(mContext, call.getSubId());
+        final String number = call.getNormalizedNumber().getCacheKey(countryIso);
+        if (TextUtils.isEmpty(number)) {
+            return;
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+        RecentCalls recentCalls = mRecentIncomingCalls.get(number);
+        if (recentCalls == null || now - recentCalls.firstCallTime > RECENT_CALLS_WINDOW_MS) {
+            recentCalls = new RecentCalls(now);
+            mRecentIncomingCalls.put(number, recentCalls);
+        }
+        recentCalls.count++;
+
+        final int score = mSpamScorer.getScore(number, recentCalls.count);
+        Log.d(TAG, "Spam score " + score + " for call " + call.getId());
+        mSpamScoreByCallId.put(call.getId(), score);
+    }
+
+    /**
+     * Marks the entry as likely spam if the call scored high enough and the caller isn't a
+     * local contact.
+     */
+    private void applySpamScore(String callId, ContactCacheEntry entry) {
+        final Integer score = mSpamScoreByCallId.get(callId);
+        entry.isSpamLikely = score != null && score >= SpamScorer.SPAM_LIKELY_SCORE
+                && entry.lookupKey == null;
+    }
+
+    /**
+     * Adds the number of the call to the reported spam numbers.
+     */
+    public void reportSpam(Call call) {
+        if (call.getNormalizedNumber().isSip()) {
+            return;
+        }
+        final String countryIso =
+                GeoDescriptionCache.getInstance().getCountryIso(mContext, call.getSubId());
+        final String number = call.getNormalizedNumber().getCacheKey(countryIso);
+        if (!TextUtils.isEmpty(number)) {
+            mSpamScorer.reportSpam(number);
+        }
+    }
+
+    private static class RecentCalls {
+        final long firstCallTime;
+        int count;
+
+        RecentCalls(long firstCallTime) {
+            this.firstCallTime = firstCallTime;
+        }
+    }
+
+    /**
+     * Maps the offline directory on a background thread, so that the file I/O stays off the
+     * main thread.
+     */
+    private void openOfflineDirectory() {
+        final File file = new File(SystemProperties.get(PROPERTY_CALLER_DIRECTORY,
+                DEFAULT_CALLER_DIRECTORY));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (!file.exists()) {
+                    return;
+                }
+                try {
+                    final OfflineDirectory directory = OfflineDirectory.open(file);
+                    Log.d(TAG, "Opened offline directory with " + directory.size()
+                            + " entries");
+                    mOfflineDirectory = directory;
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to open offline directory " + file, e);
+                }
+            }
+        }, TAG).start();
+    }
+
+    private OfflineDirectory.Entry lookupOfflineDirectory(Call call) {
+        final OfflineDirectory directory = mOfflineDirectory;
+        if (directory == null || call.getNormalizedNumber().isSip()) {
+            return null;
+        }
+        final String countryIso =
+                GeoDescriptionCache.getInstance().getCountryIso(mContext, call.getSubId());
+        // Only full numbers are looked up, so that short numbers can't match country codes.
+        final String e164 = call.getNormalizedNumber().getE164(countryIso);
+        return e164 != null ? directory.lookup(e164) : null;
+    }
+
+    /**
+     * Presents an offline directory entry as a remote lookup result.
+     */
+    private static class DirectoryInfo implements PhoneNumberService.PhoneNumberInfo {
+        private final String mNumber;
+        private final OfflineDirectory.Entry mEntry;
+
+        DirectoryInfo(String number, OfflineDirectory.Entry entry) {
+            mNumber = number;
+            mEntry = entry;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return mEntry.name;
+        }
+
+        @Override
+        public String getNumber() {
+            return mNumber;
+        }
+
+        @Override
+        public int getPhoneType() {
+            return Phone.TYPE_CUSTOM;
+        }
+
+        @Override
+        public String getPhoneLabel() {
+            return mEntry.label;
+        }
+
+        @Override
+        public String getNormalizedNumber() {
+            return null;
+        }
+
+        @Override
+        public String getImageUrl() {
+            return null;
+        }
+
+        @Override
+        public boolean isBusiness() {
+            return mEntry.isBusiness();
+        }
+    }
+
     class PhoneNumberServiceListener implements PhoneNumberService.NumberLookupListener,
                                      PhoneNumberService.ImageLookupListener {
         private final String mCallId;
@@ -250,6 +516,7 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
                 // field is no longer used; it is persisted here in case
                 // the UI is ever changed to use it.
                 entry.location = oldEntry.location;
+                entry.copyPersonReference(oldEntry);
             }
 
             // If no image and it's a business, switch to using the default business avatar.
@@ -317,6 +584,13 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
     public void clearCache() {
         mInfoMap.clear();
         mCallBacks.clear();
+        mInfoByNumber.clear();
+        mNumberKeyByCallId.clear();
+        mSpamScoreByCallId.clear();
+        if (mPhoneNumberService != null) {
+            Log.d(TAG, mPhoneNumberService.getStats());
+        }
+        GeoDescriptionCache.getInstance().clear();
     }
 
     private ContactCacheEntry buildEntry(Context context, String callId,
@@ -469,7 +743,12 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
         cce.isSipCall = isSipCall;
 
         if (isIncoming) {
-            fillDetailedInfo(context, info.contactIdOrZero, cce);
+            // Detailed fields are prefetched together with the PhoneLookup
+            // query, see CallerInfo#updateDetailedInfo.
+            cce.nickName = info.nickName;
+            cce.organization = info.organization;
+            cce.position = info.position;
+            cce.city = info.city;
         }
     }
 
@@ -477,6 +756,7 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
      * Sends the updated information to call the callbacks for the entry.
      */
     private void sendInfoNotifications(String callId, ContactCacheEntry entry) {
+        applySpamScore(callId, entry);
         final Set<ContactInfoCacheCallback> callBacks = mCallBacks.get(callId);
         if (callBacks != null) {
             for (ContactInfoCacheCallback callBack : callBacks) {
@@ -496,6 +776,101 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
 
     private void clearCallbacks(String callId) {
         mCallBacks.remove(callId);
+
+        // The lookup pipeline for this call is done; share the result with later calls
+        // from the same number.
+        final String numberKey = mNumberKeyByCallId.remove(callId);
+        final ContactCacheEntry entry = mInfoMap.get(callId);
+        if (numberKey != null && entry != null) {
+            mInfoByNumber.put(numberKey, entry.copy());
+        }
+    }
+
+    /**
+     * @return the key to share lookup results between calls with the same number, or
+     * {@code null} if the result of this call must not be shared.
+     */
+    private String getNumberKey(Call call, boolean isIncoming) {
+        if (call.getNumberPresentation() != TelecomManager.PRESENTATION_ALLOWED
+                || !TextUtils.isEmpty(call.getCnapName())) {
+            return null;
+        }
+        return getNumberKey(call.getNormalizedNumber(), call.getSubId(), isIncoming);
+    }
+
+    private String getNumberKey(NormalizedNumber number, int subId, boolean isIncoming) {
+        final String countryIso = GeoDescriptionCache.getInstance().getCountryIso(mContext, subId);
+        final String key = number.getCacheKey(countryIso);
+        if (key == null) {
+            return null;
+        }
+        // Incoming entries carry location and detailed info, outgoing ones don't.
+        return (isIncoming ? "in:" : "out:") + key;
+    }
+
+    /**
+     * Starts warming up the cache with starred contacts and recently called numbers, so
+     * that calls with them are served without a provider query. The first call also sets up
+     * the prefetch to run again when the screen turns on or the device is unlocked, if the
+     * last one is older than {@link #PREFETCH_MAX_AGE_MS}, and when contacts or the call log
+     * change.
+     */
+    public void prefetch() {
+        if (!mPrefetchTriggersRegistered) {
+            mPrefetchTriggersRegistered = true;
+            final IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+            filter.addAction(Intent.ACTION_USER_PRESENT);
+            mContext.registerReceiver(mScreenOnReceiver, filter);
+            mContext.getContentResolver().registerContentObserver(Contacts.CONTENT_URI, true,
+                    mContactsObserver);
+            mContext.getContentResolver().registerContentObserver(Calls.CONTENT_URI, true,
+                    mContactsObserver);
+        }
+        mHandler.removeCallbacks(mPrefetchRunnable);
+        if (!mCallBacks.isEmpty()) {
+            // Don't compete with the lookups of a call.
+            mHandler.postDelayed(mPrefetchRunnable, PREFETCH_DELAY_MS);
+            return;
+        }
+        if (mPrefetcher != null) {
+            mPrefetcher.cancel();
+        }
+        mPrefetchTime = SystemClock.elapsedRealtime();
+        mPrefetcher = new ContactPrefetcher(mContext, this);
+        mPrefetcher.start();
+    }
+
+    @Override
+    public void onPrefetchComplete(List<ContactPrefetcher.PrefetchedContact> contacts) {
+        mPrefetcher = null;
+        final int subId = SubscriptionManager.getDefaultVoiceSubId();
+        final HashMap<String, ContactCacheEntry> prefetched = Maps.newHashMap();
+        for (ContactPrefetcher.PrefetchedContact contact : contacts) {
+            final NormalizedNumber number = new NormalizedNumber(contact.number);
+            for (boolean isIncoming : new boolean[] { true, false }) {
+                final String key = getNumberKey(number, subId, isIncoming);
+                if (key != null) {
+                    prefetched.put(key, buildEntry(mContext, null, contact.callerInfo,
+                            TelecomManager.PRESENTATION_ALLOWED, isIncoming));
+                }
+            }
+        }
+        mPrefetched = prefetched;
+    }
+
+    /**
+     * Logs the time from the creation of an incoming call until its contact's name was known,
+     * separately for prefetched and looked up contacts.
+     */
+    private void trackRingToName(Call call, LatencyHistogram histogram) {
+        final long createTime = call.getCreateTimeMillis();
+        if (createTime <= 0) {
+            return;
+        }
+        final long elapsed = Math.max(0, System.currentTimeMillis() - createTime);
+        histogram.add(elapsed);
+        Log.d(TAG, "Ring to name " + elapsed + " ms; " + mPrefetchedRingToName + " "
+                + mLookedUpRingToName);
     }
 
     /**
@@ -535,47 +910,6 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
         public void onImageLoadComplete(String callId, ContactCacheEntry entry);
     }
 
-    private static void fillDetailedInfo(Context context,
-            final long contactId, ContactCacheEntry cce) {
-        final String where = Data.CONTACT_ID + " = " + contactId;
-        Cursor cursor = context.getContentResolver().query(Data.CONTENT_URI,
-                DETAILED_INFO_PROJECTION, where, null, null);
-        if (cursor == null) {
-            return;
-        }
-
-        try {
-            int mimeTypeColumnIndex = cursor.getColumnIndex(Data.MIMETYPE);
-            int orgColumnIndex = cursor.getColumnIndex(Organization.COMPANY);
-            int positionColumnIndex = cursor.getColumnIndex(Organization.TITLE);
-            int nickNameColumnIndex = cursor.getColumnIndex(Nickname.NAME);
-            int cityColumnIndex = cursor.getColumnIndex(StructuredPostal.CITY);
-
-            cursor.moveToFirst();
-
-            while (!cursor.isAfterLast()) {
-                final String mimeType = cursor.getString(mimeTypeColumnIndex);
-                if (TextUtils.equals(mimeType, Organization.CONTENT_ITEM_TYPE)) {
-                    if (!cursor.isNull(orgColumnIndex)) {
-                        cce.organization = cursor.getString(orgColumnIndex);
-                    }
-                    if (!cursor.isNull(positionColumnIndex)) {
-                        cce.position = cursor.getString(positionColumnIndex);
-                    }
-                } else if (TextUtils.equals(mimeType, Nickname.CONTENT_ITEM_TYPE)
-                        && !cursor.isNull(nickNameColumnIndex)) {
-                    cce.nickName = cursor.getString(nickNameColumnIndex);
-                } else if (TextUtils.equals(mimeType, StructuredPostal.CONTENT_ITEM_TYPE)
-                        && !cursor.isNull(cityColumnIndex)) {
-                    cce.city = cursor.getString(cityColumnIndex);
-                }
-                cursor.moveToNext();
-            }
-        } finally {
-            cursor.close();
-        }
-    }
-
     public static class ContactCacheEntry {
         public String name;
         public String number;
@@ -593,6 +927,47 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
         public Uri displayPhotoUri;
         public Uri lookupUri; // Sent to NotificationMananger
         public String lookupKey;
+        public boolean isSpamLikely;
+        /**
+         * The person reference of the notification, and the lookup URI and number it was
+         * resolved from. Maintained by {@link StatusBarNotifier}.
+         */
+        String personReference;
+        Uri personReferenceLookupUri;
+        String personReferenceNumber;
+
+        /**
+         * Carries the person reference forward from the entry this one replaces; it is kept
+         * as long as it was resolved from the same lookup URI and number.
+         */
+        void copyPersonReference(ContactCacheEntry oldEntry) {
+            personReference = oldEntry.personReference;
+            personReferenceLookupUri = oldEntry.personReferenceLookupUri;
+            personReferenceNumber = oldEntry.personReferenceNumber;
+        }
+
+        /**
+         * @return a copy of the contact info, without what is specific to a call: the spam
+         * flag and the person reference.
+         */
+        ContactCacheEntry copy() {
+            final ContactCacheEntry entry = new ContactCacheEntry();
+            entry.name = name;
+            entry.number = number;
+            entry.location = location;
+            entry.label = label;
+            entry.photo = photo;
+            entry.nickName = nickName;
+            entry.organization = organization;
+            entry.position = position;
+            entry.city = city;
+            entry.isSipCall = isSipCall;
+            entry.contactUri = contactUri;
+            entry.displayPhotoUri = displayPhotoUri;
+            entry.lookupUri = lookupUri;
+            entry.lookupKey = lookupKey;
+            return entry;
+        }
 
         @Override
         public String toString() {
@@ -605,6 +980,7 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
                     .add("isSipCall", isSipCall)
                     .add("contactUri", contactUri)
                     .add("displayPhotoUri", displayPhotoUri)
+                    .add("isSpamLikely", isSpamLikely)
                     .toString();
         }
     }
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.PhoneLookup;
+import android.text.TextUtils;
+
+import com.android.contacts.common.util.PhoneNumberHelper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Warms up {@link ContactInfoCache}, so that calls with starred contacts and recently called
+ * or calling numbers don't start with a cold lookup. The cache runs it when the in-call service
+ * is bound, when the screen turns on and when contacts or the call log change.
+ *
+ * Each prefetch runs on a background thread and is bounded: it resolves at most
+ * {@link #MAX_STARRED} starred and {@link #MAX_RECENT} recent numbers, decodes photos scaled
+ * to the screen width as long as they fit in {@link #MAX_PHOTO_BYTES}, and gives up after
+ * {@link #MAX_DURATION_MS} or when cancelled.
+ */
+public class ContactPrefetcher {
+    private static final String TAG = ContactPrefetcher.class.getSimpleName();
+
+    private static final int MAX_STARRED = 8;
+    private static final int MAX_RECENT = 8;
+    private static final int MAX_PHOTO_BYTES = 4 * 1024 * 1024;
+    private static final long MAX_DURATION_MS = 3000;
+
+    /**
+     * A contact resolved by the prefetch, with the number it was resolved for.
+     */
+    public static class PrefetchedContact {
+        public final String number;
+        public final CallerInfo callerInfo;
+
+        PrefetchedContact(String number, CallerInfo callerInfo) {
+            this.number = number;
+            this.callerInfo = callerInfo;
+        }
+    }
+
+    public interface Listener {
+        /** Called on the main thread with the contacts resolved by the prefetch. */
+        public void onPrefetchComplete(List<PrefetchedContact> contacts);
+    }
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean mCancelled;
+    // Only used on the prefetch thread.
+    private int mPhotoBytes;
+
+    public ContactPrefetcher(Context context, Listener listener) {
+        mContext = context;
+        mListener = listener;
+    }
+
+    public void start() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                final long start = SystemClock.elapsedRealtime();
+                final List<PrefetchedContact> contacts = prefetch(start);
+                Log.d(TAG, "Prefetched " + contacts.size() + " contacts, " + mPhotoBytes
+                        + " photo bytes in " + (SystemClock.elapsedRealtime() - start) + " ms");
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mCancelled) {
+                            mListener.onPrefetchComplete(contacts);
+                        }
+                    }
+                });
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Stops the prefetch. Must be called on the main thread; the listener isn't called after.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    private List<PrefetchedContact> prefetch(long start) {
+        final LinkedHashSet<String> numbers = new LinkedHashSet<String>();
+        queryNumbers(Phone.CONTENT_URI, Phone.NUMBER, Phone.STARRED + "=1",
+                Phone.TIMES_CONTACTED + " DESC", MAX_STARRED, numbers);
+        queryNumbers(Calls.CONTENT_URI, Calls.NUMBER, null, Calls.DEFAULT_SORT_ORDER,
+                MAX_RECENT, numbers);
+
+        final List<PrefetchedContact> contacts = new ArrayList<PrefetchedContact>();
+        for (String number : numbers) {
+            if (mCancelled) {
+                break;
+            }
+            if (SystemClock.elapsedRealtime() - start > MAX_DURATION_MS) {
+                Log.d(TAG, "Prefetch time budget used up");
+                break;
+            }
+            final CallerInfo info = lookup(number);
+            if (info != null) {
+                contacts.add(new PrefetchedContact(number, info));
+            }
+        }
+        return contacts;
+    }
+
+    private void queryNumbers(Uri uri, String column, String selection, String sortOrder,
+            int limit, LinkedHashSet<String> numbers) {
+        // Both the contacts and the call log provider honor the "limit" parameter.
+        final Uri limitedUri = uri.buildUpon()
+                .appendQueryParameter(ContactsContract.LIMIT_PARAM_KEY, String.valueOf(limit))
+                .build();
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(limitedUri, new String[] { column },
+                    selection, null, sortOrder);
+            if (cursor == null) {
+                return;
+            }
+            int added = 0;
+            while (added < limit && cursor.moveToNext()) {
+                final String number = cursor.getString(0);
+                if (!TextUtils.isEmpty(number) && numbers.add(number)) {
+                    added++;
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(this, "Failed to query numbers to prefetch: " + e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private CallerInfo lookup(String number) {
+        final Uri contactRef = PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI.buildUpon()
+                .appendPath(number)
+                .appendQueryParameter(PhoneLookup.QUERY_PARAMETER_SIP_ADDRESS,
+                        String.valueOf(PhoneNumberHelper.isUriNumber(number)))
+                .build();
+        final CallerInfo info;
+        try {
+            info = CallerInfo.getCallerInfo(mContext, contactRef,
+                    mContext.getContentResolver().query(contactRef, null, null, null, null));
+            if (!info.contactExists) {
+                return null;
+            }
+            info.updateDetailedInfo(mContext);
+        } catch (RuntimeException e) {
+            Log.w(this, "Failed to prefetch contact: " + e);
+            return null;
+        }
+
+        if (info.contactDisplayPhotoUri != null) {
+            final Bitmap photo = loadScaledPhoto(info.contactDisplayPhotoUri,
+                    MAX_PHOTO_BYTES - mPhotoBytes);
+            if (photo != null) {
+                mPhotoBytes += photo.getByteCount();
+                info.cachedPhoto = new BitmapDrawable(mContext.getResources(), photo);
+                info.isCachedPhotoCurrent = true;
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Decodes the photo, subsampled so that it is no wider than the screen.
+     *
+     * @return the photo, or {@code null} if it couldn't be decoded or would take more than
+     * {@code maxBytes}.
+     */
+    private Bitmap loadScaledPhoto(Uri photoUri, int maxBytes) {
+        final int targetSize = mContext.getResources().getDisplayMetrics().widthPixels;
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(photoUri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (sampleSize * 2) >= targetSize) {
+            sampleSize *= 2;
+        }
+        // Decoded as ARGB_8888, four bytes per pixel.
+        final long width = (options.outWidth + sampleSize - 1) / sampleSize;
+        final long height = (options.outHeight + sampleSize - 1) / sampleSize;
+        if (width * height * 4 > maxBytes) {
+            Log.d(TAG, "Skipping photo that doesn't fit in the prefetch photo budget");
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        final Bitmap photo = decode(photoUri, options);
+        if (photo != null && photo.getByteCount() > maxBytes) {
+            photo.recycle();
+            return null;
+        }
+        return photo;
+    }
+
+    private Bitmap decode(Uri photoUri, BitmapFactory.Options options) {
+        InputStream inputStream = null;
+        try {
+            inputStream = mContext.getContentResolver().openInputStream(photoUri);
+            return inputStream == null ? null
+                    : BitmapFactory.decodeStream(inputStream, null, options);
+        } catch (IOException | RuntimeException e) {
+            Log.w(this, "Failed to decode photo to prefetch: " + e);
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.e(this, "Unable to close input stream.", e);
+                }
+            }
+        }
+    }
+}
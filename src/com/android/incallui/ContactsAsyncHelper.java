@@ -129,7 +129,8 @@ public class ContactsAsyncHelper {
 
                             // This assumes Drawable coming from contact database is usually
                             // BitmapDrawable and thus we can have (down)scaled version of it.
-                            args.photoIcon = getPhotoIconWhenAppropriate(args.context, args.photo);
+                            args.photoIcon = getPhotoIconWhenAppropriate(args.context, args.photo,
+                                    args.displayPhotoUri);
 
                             Log.d(ContactsAsyncHelper.this, "Loading image: " + msg.arg1 +
                                     " token: " + msg.what + " image URI: " + args.displayPhotoUri);
@@ -163,36 +164,16 @@ public class ContactsAsyncHelper {
         /**
          * Returns a Bitmap object suitable for {@link Notification}'s large icon. This might
          * return null when the given Drawable isn't BitmapDrawable, or if the system fails to
-         * create a scaled Bitmap for the Drawable.
+         * create a scaled Bitmap for the Drawable. The icon is shared through
+         * {@link AvatarStore}, so it is only scaled once per photo.
          */
-        private Bitmap getPhotoIconWhenAppropriate(Context context, Drawable photo) {
+        private Bitmap getPhotoIconWhenAppropriate(Context context, Drawable photo,
+                Uri photoUri) {
             if (!(photo instanceof BitmapDrawable)) {
                 return null;
             }
-            int iconSize = context.getResources()
-                    .getDimensionPixelSize(R.dimen.notification_icon_size);
-            Bitmap orgBitmap = ((BitmapDrawable) photo).getBitmap();
-            int orgWidth = orgBitmap.getWidth();
-            int orgHeight = orgBitmap.getHeight();
-            int longerEdge = orgWidth > orgHeight ? orgWidth : orgHeight;
-            // We want downscaled one only when the original icon is too big.
-            if (longerEdge > iconSize) {
-                float ratio = ((float) longerEdge) / iconSize;
-                int newWidth = (int) (orgWidth / ratio);
-                int newHeight = (int) (orgHeight / ratio);
-                // If the longer edge is much longer than the shorter edge, the latter may
-                // become 0 which will cause a crash.
-                if (newWidth <= 0 || newHeight <= 0) {
-                    Log.w(this, "Photo icon's width or height become 0.");
-                    return null;
-                }
-
-                // It is sure ratio >= 1.0f in any case and thus the newly created Bitmap
-                // should be smaller than the original.
-                return Bitmap.createScaledBitmap(orgBitmap, newWidth, newHeight, true);
-            } else {
-                return orgBitmap;
-            }
+            return AvatarStore.getInstance(context).getAvatar(photoUri, null,
+                    ((BitmapDrawable) photo).getBitmap(), false /* circle */);
         }
     }
 
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.SystemClock;
+
+import com.google.common.collect.Maps;
+
+import java.util.HashMap;
+
+/**
+ * Measures the creation of in-call components that are only created when first needed, such
+ * as the dialpad and the conference manager, which is what creating them up front would have
+ * added to the startup of the in-call UI.
+ *
+ * The memory is the growth of the Java heap while creating the component, so it is only an
+ * estimate. Must be used from the main thread.
+ */
+final class DeferredCreation {
+    private static final String TAG = DeferredCreation.class.getSimpleName();
+
+    private static int sInCallUiCount;
+    private static final HashMap<String, Stats> sStats = Maps.newHashMap();
+
+    private static final class Stats {
+        final LatencyHistogram times;
+        int count;
+        long bytes;
+
+        Stats(String name) {
+            times = new LatencyHistogram(name);
+        }
+    }
+
+    private final String mName;
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private final long mStartHeap = getUsedHeap();
+
+    /**
+     * Called when the in-call UI is created, to count how often components are not needed.
+     */
+    static void onInCallUiCreated() {
+        sInCallUiCount++;
+    }
+
+    /**
+     * Starts measuring the creation of a component.
+     */
+    static DeferredCreation begin(String name) {
+        return new DeferredCreation(name);
+    }
+
+    private DeferredCreation(String name) {
+        mName = name;
+    }
+
+    /**
+     * Stops measuring and logs the cost of the component.
+     */
+    void end() {
+        final long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+        final long bytes = Math.max(0, getUsedHeap() - mStartHeap);
+        Stats stats = sStats.get(mName);
+        if (stats == null) {
+            stats = new Stats(mName);
+            sStats.put(mName, stats);
+        }
+        stats.times.add(elapsed);
+        stats.count++;
+        stats.bytes += bytes;
+        Log.d(TAG, "Created " + mName + " on first use in " + elapsed + " ms, ~"
+                + bytes / 1024 + " KB; needed by " + stats.count + " of " + sInCallUiCount
+                + " in-call UIs, " + stats.times + " ~" + stats.bytes / stats.count / 1024
+                + " KB on average");
+    }
+
+    private static long getUsedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
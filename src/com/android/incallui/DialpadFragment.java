@@ -16,12 +16,15 @@
 
 package com.android.incallui;
 
+import android.content.ClipData;
+import android.content.ClipboardManager;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.telephony.PhoneNumberUtils;
 import android.text.Editable;
+import android.text.TextUtils;
 import android.text.method.DialerKeyListener;
 import android.util.AttributeSet;
 import android.view.KeyEvent;
@@ -461,9 +464,15 @@ public class DialpadFragment extends BaseFragment<DialpadPresenter, DialpadPrese
         if (mDtmfDialerField != null) {
             mDialerKeyListener = new DTMFKeyListener();
             mDtmfDialerField.setKeyListener(mDialerKeyListener);
-            // remove the long-press context menus that support
-            // the edit (copy / paste / select) functions.
-            mDtmfDialerField.setLongClickable(false);
+            // Instead of the long-press context menus that support the edit
+            // (copy / paste / select) functions, a long press sends the digits
+            // on the clipboard, e.g. a copied PIN.
+            mDtmfDialerField.setOnLongClickListener(new View.OnLongClickListener() {
+                @Override
+                public boolean onLongClick(View v) {
+                    return pasteDigits();
+                }
+            });
             mDtmfDialerField.setElegantTextHeight(false);
             configureKeypadListeners();
         }
@@ -499,6 +508,26 @@ public class DialpadFragment extends BaseFragment<DialpadPresenter, DialpadPrese
         super.onDestroyView();
     }
 
+    /**
+     * Plays the tones for the text on the clipboard, as if its digits had been typed.
+     *
+     * @return whether there was text to paste.
+     */
+    private boolean pasteDigits() {
+        final ClipboardManager clipboard = (ClipboardManager) getActivity().getSystemService(
+                Context.CLIPBOARD_SERVICE);
+        final ClipData clip = clipboard.getPrimaryClip();
+        if (clip == null || clip.getItemCount() == 0) {
+            return false;
+        }
+        final CharSequence text = clip.getItemAt(0).coerceToText(getActivity());
+        if (TextUtils.isEmpty(text)) {
+            return false;
+        }
+        getPresenter().processDtmfString(text);
+        return true;
+    }
+
     /**
      * Getter for Dialpad text.
      *
@@ -22,7 +22,7 @@ import android.telephony.PhoneNumberUtils;
  * Logic for call buttons.
  */
 public class DialpadPresenter extends Presenter<DialpadPresenter.DialpadUi>
-        implements InCallPresenter.InCallStateListener {
+        implements InCallPresenter.InCallStateListener, PostDialEngine.Listener {
 
     private Call mCall;
 
@@ -30,6 +30,7 @@ public class DialpadPresenter extends Presenter<DialpadPresenter.DialpadUi>
     public void onUiReady(DialpadUi ui) {
         super.onUiReady(ui);
         InCallPresenter.getInstance().addListener(this);
+        PostDialEngine.getInstance().addListener(this);
         mCall = CallList.getInstance().getOutgoingOrActive();
     }
 
@@ -37,6 +38,7 @@ public class DialpadPresenter extends Presenter<DialpadPresenter.DialpadUi>
     public void onUiUnready(DialpadUi ui) {
         super.onUiUnready(ui);
         InCallPresenter.getInstance().removeListener(this);
+        PostDialEngine.getInstance().removeListener(this);
     }
 
     @Override
@@ -46,6 +48,16 @@ public class DialpadPresenter extends Presenter<DialpadPresenter.DialpadUi>
         Log.d(this, "DialpadPresenter mCall = " + mCall);
     }
 
+    @Override
+    public void onPostDialDigitsSent(String callId, String digits, String remaining) {
+        // Show post-dial digits as if they had been typed.
+        if (getUi() != null && mCall != null && mCall.getId().equals(callId)) {
+            for (int i = 0; i < digits.length(); i++) {
+                getUi().appendDigitsToField(digits.charAt(i));
+            }
+        }
+    }
+
     /**
      * Processes the specified digit as a DTMF key, by playing the
      * appropriate DTMF tone, and appending the digit to the EditText
@@ -67,6 +79,28 @@ public class DialpadPresenter extends Presenter<DialpadPresenter.DialpadUi>
         }
     }
 
+    /**
+     * Processes a string of digits, e.g. a pasted PIN, as DTMF keys: plays their tones one
+     * after the other and appends them to the digits field. Characters that aren't DTMF keys
+     * are ignored.
+     */
+    public final void processDtmfString(CharSequence digits) {
+        if (mCall == null || digits == null) {
+            return;
+        }
+        Log.d(this, "Processing dtmf string of " + digits.length() + " characters");
+        final DialpadUi ui = getUi();
+        if (ui != null) {
+            for (int i = 0; i < digits.length(); i++) {
+                final char c = digits.charAt(i);
+                if (PhoneNumberUtils.is12Key(c)) {
+                    ui.appendDigitsToField(c);
+                }
+            }
+        }
+        TelecomAdapter.getInstance().playDtmfTones(mCall.getId(), digits);
+    }
+
     /**
      * Stops the local tone based on the phone type.
      */
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.telephony.PhoneNumberUtils;
+
+import com.google.common.collect.Maps;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Plays DTMF tones on calls in the order they were asked for, from a thread of its own so
+ * that neither a busy main thread nor other telecom commands can delay or reorder them.
+ *
+ * Each call has a queue of tones. A tone for a key press lasts until the key is released, and
+ * tones for a string of digits last {@link #MIN_TONE_MS} each. Either way a tone lasts at
+ * least {@link #MIN_TONE_MS}, and the next one starts no sooner than {@link #MIN_GAP_MS}
+ * after it, so that quick taps aren't lost by the network. Key presses are dropped once
+ * {@link #MAX_QUEUED_TONES} tones wait for the call; strings are always queued in full, so
+ * that callers are only told a string was played once all of it was.
+ *
+ * Tones are asked for from the main thread, where the telecom call is looked up.
+ */
+final class DtmfSequencer {
+    private static final String TAG = DtmfSequencer.class.getSimpleName();
+
+    /** Shortest tone played, however briefly the key is pressed. */
+    static final long MIN_TONE_MS = 100;
+    /** Shortest silence between two tones. */
+    static final long MIN_GAP_MS = 70;
+    static final int MAX_QUEUED_TONES = 64;
+
+    private static final int MSG_QUEUE = 1;
+    private static final int MSG_RELEASE = 2;
+    private static final int MSG_ADVANCE = 3;
+    private static final int MSG_CANCEL = 4;
+
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Only used on the worker thread.
+    private final HashMap<String, Sequence> mSequences = Maps.newHashMap();
+
+    // Written on the worker thread only.
+    private final LatencyHistogram mStartLatencies = new LatencyHistogram("dtmf");
+    private volatile int mDropped;
+    private volatile int mStretched;
+    private volatile int mDelayed;
+
+    private static final class Tone {
+        final android.telecom.Call call;
+        final String callId;
+        final char digit;
+        final long queueTime = SystemClock.uptimeMillis();
+        /** Whether the tone is for a key press, rather than part of a string. */
+        final boolean held;
+        boolean released;
+        boolean delayed;
+        /** Run on the main thread once the tone has been played. */
+        Runnable onPlayed;
+
+        Tone(android.telecom.Call call, String callId, char digit, boolean held) {
+            this.call = call;
+            this.callId = callId;
+            this.digit = digit;
+            this.held = held;
+            released = !held;
+        }
+    }
+
+    private static final class Sequence {
+        final String callId;
+        final ArrayDeque<Tone> queue = new ArrayDeque<Tone>();
+        Tone playing;
+        long toneStartTime;
+        long toneStopTime;
+
+        Sequence(String callId) {
+            this.callId = callId;
+        }
+    }
+
+    DtmfSequencer() {
+        final HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_QUEUE:
+                        queue((Tone) msg.obj);
+                        break;
+                    case MSG_RELEASE:
+                        release((String) msg.obj);
+                        break;
+                    case MSG_ADVANCE: {
+                        final Sequence sequence = (Sequence) msg.obj;
+                        if (mSequences.get(sequence.callId) == sequence) {
+                            advance(sequence);
+                        }
+                        break;
+                    }
+                    case MSG_CANCEL:
+                        cancel((String) msg.obj);
+                        break;
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts a tone for a key press, to be stopped by {@link #stopTone(String)} when the key
+     * is released.
+     */
+    void playTone(android.telecom.Call call, String callId, char digit) {
+        mHandler.obtainMessage(MSG_QUEUE, new Tone(call, callId, digit, true)).sendToTarget();
+    }
+
+    /**
+     * Stops the tone of the last key pressed on the call.
+     */
+    void stopTone(String callId) {
+        mHandler.obtainMessage(MSG_RELEASE, callId).sendToTarget();
+    }
+
+    /**
+     * Plays a tone for each dialable digit of the string, one after the other. Other
+     * characters are skipped.
+     *
+     * @param onPlayed Run on the main thread once the last tone has been played, unless the
+     * tones are cancelled; may be {@code null}.
+     */
+    void playTones(android.telecom.Call call, String callId, CharSequence digits,
+            Runnable onPlayed) {
+        Tone last = null;
+        for (int i = 0; i < digits.length(); i++) {
+            final char c = digits.charAt(i);
+            if (PhoneNumberUtils.is12Key(c)) {
+                if (last != null) {
+                    mHandler.obtainMessage(MSG_QUEUE, last).sendToTarget();
+                }
+                last = new Tone(call, callId, c, false);
+            } else {
+                Log.d(TAG, "Skipping non-DTMF character '" + c + "'");
+            }
+        }
+        if (last != null) {
+            last.onPlayed = onPlayed;
+            mHandler.obtainMessage(MSG_QUEUE, last).sendToTarget();
+        } else if (onPlayed != null) {
+            mMainHandler.post(onPlayed);
+        }
+    }
+
+    /**
+     * Tells telephony whether to go on with the post-dial sequence of the call, in order with
+     * the tones asked for before and after.
+     */
+    void postDialContinue(final android.telecom.Call call, final String callId,
+            final boolean proceed) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    call.postDialContinue(proceed);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Unable to continue post-dial for " + callId, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the tones queued for the call, e.g. because it is being disconnected.
+     */
+    void cancel(String callId) {
+        mHandler.obtainMessage(MSG_CANCEL, callId).sendToTarget();
+    }
+
+    /**
+     * @return a one line summary of tone latencies, from being asked for until played, and of
+     * tones that were dropped, played longer than the key was pressed or held back.
+     */
+    String dumpMetrics() {
+        return mStartLatencies + " dropped=" + mDropped + " stretched=" + mStretched
+                + " delayed=" + mDelayed;
+    }
+
+    private void queue(Tone tone) {
+        Sequence sequence = mSequences.get(tone.callId);
+        if (sequence == null) {
+            sequence = new Sequence(tone.callId);
+            mSequences.put(tone.callId, sequence);
+        }
+        if (tone.held) {
+            // A key press ends any earlier one whose release we missed.
+            releaseAll(sequence);
+        }
+        if (tone.held && sequence.queue.size() >= MAX_QUEUED_TONES) {
+            Log.w(this, "Too many DTMF tones queued for " + tone.callId + ", dropping '"
+                    + tone.digit + "'");
+            mDropped++;
+        } else {
+            sequence.queue.add(tone);
+        }
+        advance(sequence);
+    }
+
+    private void release(String callId) {
+        final Sequence sequence = mSequences.get(callId);
+        if (sequence == null) {
+            return;
+        }
+        final Tone playing = sequence.playing;
+        if (playing != null && !playing.released && SystemClock.uptimeMillis()
+                < sequence.toneStartTime + MIN_TONE_MS) {
+            mStretched++;
+        }
+        releaseAll(sequence);
+        advance(sequence);
+    }
+
+    private void releaseAll(Sequence sequence) {
+        if (sequence.playing != null) {
+            sequence.playing.released = true;
+        }
+        for (Tone tone : sequence.queue) {
+            tone.released = true;
+        }
+    }
+
+    private void cancel(String callId) {
+        final Sequence sequence = mSequences.remove(callId);
+        if (sequence == null) {
+            return;
+        }
+        mHandler.removeMessages(MSG_ADVANCE, sequence);
+        if (!sequence.queue.isEmpty()) {
+            Log.d(TAG, "Dropping " + sequence.queue.size() + " DTMF tones for " + callId);
+        }
+        if (sequence.playing != null) {
+            stop(sequence.playing);
+        }
+    }
+
+    /**
+     * Stops the playing tone and starts the next one, as far as the minimum durations allow,
+     * and schedules itself for when they allow more.
+     */
+    private void advance(Sequence sequence) {
+        mHandler.removeMessages(MSG_ADVANCE, sequence);
+        final long now = SystemClock.uptimeMillis();
+
+        final Tone playing = sequence.playing;
+        if (playing != null) {
+            if (!playing.released) {
+                // Until the key is released.
+                return;
+            }
+            final long stopTime = sequence.toneStartTime + MIN_TONE_MS;
+            if (now < stopTime) {
+                scheduleAdvance(sequence, stopTime);
+                return;
+            }
+            stop(playing);
+            sequence.playing = null;
+            sequence.toneStopTime = now;
+            if (playing.onPlayed != null) {
+                mMainHandler.post(playing.onPlayed);
+            }
+        }
+
+        final Tone next = sequence.queue.peek();
+        final long startTime = sequence.toneStopTime + MIN_GAP_MS;
+        if (now < startTime) {
+            if (next != null && next.held && !next.delayed) {
+                // Only count key presses held back, not the gaps within a string.
+                next.delayed = true;
+                mDelayed++;
+            }
+            scheduleAdvance(sequence, startTime);
+            return;
+        }
+        if (next == null) {
+            // Idle, and the gap since the last tone is over.
+            mSequences.remove(sequence.callId);
+            return;
+        }
+
+        sequence.queue.poll();
+        try {
+            next.call.playDtmfTone(next.digit);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to play DTMF tone for " + next.callId, e);
+        }
+        sequence.playing = next;
+        sequence.toneStartTime = now;
+        mStartLatencies.add(now - next.queueTime);
+        if (next.released) {
+            scheduleAdvance(sequence, now + MIN_TONE_MS);
+        }
+    }
+
+    private void stop(Tone tone) {
+        try {
+            tone.call.stopDtmfTone();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to stop DTMF tone for " + tone.callId, e);
+        }
+    }
+
+    private void scheduleAdvance(Sequence sequence, long uptimeMillis) {
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(MSG_ADVANCE, sequence), uptimeMillis);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.util.SparseArray;
+import android.view.accessibility.AccessibilityManager;
+import android.widget.TextView;
+
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Shows an elapsed time in a {@link TextView}, formatted like
+ * {@link android.text.format.DateUtils#formatElapsedTime(long)}, without allocating once it
+ * has been running for a while.
+ *
+ * The time is written into a char buffer that is handed to the view as it is, using two-digit
+ * tables in the locale's digits. The spoken content description is only built while
+ * accessibility is enabled, from plural strings that are looked up once per value.
+ *
+ * The view keeps a reference to the buffer, so each instance must only be used for one view.
+ */
+public class ElapsedTimeFormatter {
+    private static final int SECONDS_PER_MINUTE = 60;
+    private static final int SECONDS_PER_HOUR = 3600;
+
+    private final AccessibilityManager mAccessibilityManager;
+    private final char[] mTens = new char[100];
+    private final char[] mOnes = new char[100];
+    private final char mZeroDigit;
+    // Long enough for any number of hours, the separators, minutes and seconds.
+    private final char[] mBuffer = new char[32];
+    private final StringBuilder mDescription = new StringBuilder();
+
+    private final String[] mSecondFragments = new String[SECONDS_PER_MINUTE];
+    private final String[] mMinuteFragments = new String[SECONDS_PER_MINUTE];
+    private final SparseArray<String> mHourFragments = new SparseArray<String>();
+
+    private long mShownSeconds = -1;
+    private long mDescribedSeconds = -1;
+
+    public ElapsedTimeFormatter(Context context) {
+        mAccessibilityManager =
+                (AccessibilityManager) context.getSystemService(Context.ACCESSIBILITY_SERVICE);
+        mZeroDigit = DecimalFormatSymbols.getInstance().getZeroDigit();
+        for (int i = 0; i < 100; i++) {
+            mTens[i] = (char) (mZeroDigit + i / 10);
+            mOnes[i] = (char) (mZeroDigit + i % 10);
+        }
+    }
+
+    /**
+     * Shows the elapsed time in the view, if it changed since the last call.
+     */
+    public void setElapsedTime(TextView view, long elapsedMillis) {
+        final long elapsedSeconds = Math.max(0, elapsedMillis / 1000);
+        if (elapsedSeconds != mShownSeconds) {
+            view.setText(mBuffer, 0, format(elapsedSeconds));
+            mShownSeconds = elapsedSeconds;
+        }
+        if (mAccessibilityManager.isEnabled()) {
+            if (elapsedSeconds != mDescribedSeconds) {
+                view.setContentDescription(describe(elapsedSeconds));
+                mDescribedSeconds = elapsedSeconds;
+            }
+        } else {
+            mDescribedSeconds = -1;
+        }
+    }
+
+    /**
+     * Forgets what was last shown, e.g. because the view was reused for another call.
+     */
+    public void reset() {
+        mShownSeconds = -1;
+        mDescribedSeconds = -1;
+    }
+
+    /**
+     * Writes "MM:SS", or "H:MM:SS" from one hour on, into the buffer.
+     *
+     * @return the length of the text.
+     */
+    private int format(long elapsedSeconds) {
+        final long hours = elapsedSeconds / SECONDS_PER_HOUR;
+        final int minutes = (int) (elapsedSeconds % SECONDS_PER_HOUR / SECONDS_PER_MINUTE);
+        final int seconds = (int) (elapsedSeconds % SECONDS_PER_MINUTE);
+
+        int length = 0;
+        if (hours > 0) {
+            length = appendNumber(hours);
+            mBuffer[length++] = ':';
+        }
+        mBuffer[length++] = mTens[minutes];
+        mBuffer[length++] = mOnes[minutes];
+        mBuffer[length++] = ':';
+        mBuffer[length++] = mTens[seconds];
+        mBuffer[length++] = mOnes[seconds];
+        return length;
+    }
+
+    /** Writes the number at the start of the buffer, returning its length. */
+    private int appendNumber(long value) {
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = digits - 1; i >= 0; i--) {
+            mBuffer[i] = (char) (mZeroDigit + value % 10);
+            value /= 10;
+        }
+        return digits;
+    }
+
+    /**
+     * Builds the spoken duration, e.g. "4 minutes 3 seconds" or "3 hours 1 second".
+     */
+    private String describe(long elapsedSeconds) {
+        final int hours = (int) (elapsedSeconds / SECONDS_PER_HOUR);
+        final int minutes = (int) (elapsedSeconds % SECONDS_PER_HOUR / SECONDS_PER_MINUTE);
+        final int seconds = (int) (elapsedSeconds % SECONDS_PER_MINUTE);
+        final Resources res = Resources.getSystem();
+
+        mDescription.setLength(0);
+        if (hours > 0) {
+            String fragment = mHourFragments.get(hours);
+            if (fragment == null) {
+                fragment = res.getQuantityString(
+                        com.android.internal.R.plurals.duration_hours, hours, hours);
+                mHourFragments.put(hours, fragment);
+            }
+            mDescription.append(fragment);
+        }
+        if (minutes > 0) {
+            if (mMinuteFragments[minutes] == null) {
+                mMinuteFragments[minutes] = res.getQuantityString(
+                        com.android.internal.R.plurals.duration_minutes, minutes, minutes);
+            }
+            if (mDescription.length() > 0) {
+                mDescription.append(' ');
+            }
+            mDescription.append(mMinuteFragments[minutes]);
+        }
+        if (seconds > 0) {
+            if (mSecondFragments[seconds] == null) {
+                mSecondFragments[seconds] = res.getQuantityString(
+                        com.android.internal.R.plurals.duration_seconds, seconds, seconds);
+            }
+            if (mDescription.length() > 0) {
+                mDescription.append(' ');
+            }
+            mDescription.append(mSecondFragments[seconds]);
+        }
+        return mDescription.toString();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+import com.android.contacts.common.util.TelephonyManagerUtils;
+
+import java.util.Locale;
+
+/**
+ * Caches the results of {@link CallerInfo#updateGeoDescription} so that repeated unknown
+ * numbers, and numbers sharing a prefix, don't go through the location provider and the
+ * number parser again.
+ *
+ * Geographical descriptions depend only on the leading digits of a number, so entries are
+ * keyed by country ISO plus the number with its subscriber digits dropped. The country ISO
+ * itself is resolved once per subscription. Everything is dropped when the locale changes,
+ * since descriptions are localized, and when the call session ends via {@link #clear()}.
+ */
+public class GeoDescriptionCache {
+    private static final String TAG = GeoDescriptionCache.class.getSimpleName();
+
+    private static final int MAX_ENTRIES = 64;
+
+    /** Trailing digits that identify a subscriber line rather than a location. */
+    private static final int SUBSCRIBER_LINE_DIGITS = 4;
+
+    /** Numbers shorter than this are cached by their full value only. */
+    private static final int MIN_PREFIX_DIGITS = 4;
+
+    /** LruCache can't hold nulls; this marks a number without a description. */
+    private static final String NO_DESCRIPTION = "";
+
+    private static GeoDescriptionCache sInstance;
+
+    private final LruCache<String, String> mDescriptions =
+            new LruCache<String, String>(MAX_ENTRIES);
+    private final SparseArray<String> mCountryIsoBySubId = new SparseArray<String>();
+    private Locale mLocale;
+
+    public static synchronized GeoDescriptionCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new GeoDescriptionCache();
+        }
+        return sInstance;
+    }
+
+    private GeoDescriptionCache() {
+    }
+
+    /**
+     * Returns the country ISO used to parse numbers of the given subscription, resolving it
+     * only the first time it is asked for.
+     */
+    public synchronized String getCountryIso(Context context, int subId) {
+        final Locale locale = context.getResources().getConfiguration().locale;
+        checkLocale(locale);
+
+        String countryIso = mCountryIsoBySubId.get(subId);
+        if (countryIso == null) {
+            countryIso = TelephonyManagerUtils.getCurrentCountryIso(context, locale);
+            mCountryIsoBySubId.put(subId, countryIso);
+        }
+        return countryIso;
+    }
+
+    /**
+     * @return {@code true} if a result is cached for the number; the description itself is
+     * then returned by {@link #getDescription}.
+     */
+    public synchronized boolean contains(Locale locale, String countryIso, String number) {
+        checkLocale(locale);
+        return mDescriptions.get(buildKey(countryIso, number)) != null;
+    }
+
+    /**
+     * @return the cached description, or {@code null} if there is none or the number is
+     * known to have no description.
+     */
+    public synchronized String getDescription(Locale locale, String countryIso, String number) {
+        checkLocale(locale);
+        final String description = mDescriptions.get(buildKey(countryIso, number));
+        return NO_DESCRIPTION.equals(description) ? null : description;
+    }
+
+    public synchronized void putDescription(Locale locale, String countryIso, String number,
+            String description) {
+        checkLocale(locale);
+        mDescriptions.put(buildKey(countryIso, number),
+                description == null ? NO_DESCRIPTION : description);
+    }
+
+    /**
+     * Drops all cached descriptions and country ISOs.
+     */
+    public synchronized void clear() {
+        mDescriptions.evictAll();
+        mCountryIsoBySubId.clear();
+    }
+
+    private void checkLocale(Locale locale) {
+        if (mLocale != null && !mLocale.equals(locale)) {
+            Log.d(TAG, "Locale changed, dropping cached geo descriptions");
+            clear();
+        }
+        mLocale = locale;
+    }
+
+    private static String buildKey(String countryIso, String number) {
+        String digits = PhoneNumberUtils.normalizeNumber(number);
+        if (TextUtils.isEmpty(digits)) {
+            digits = number;
+        }
+        if (digits.length() >= MIN_PREFIX_DIGITS + SUBSCRIBER_LINE_DIGITS) {
+            digits = digits.substring(0, digits.length() - SUBSCRIBER_LINE_DIGITS);
+        }
+        return countryIso + ':' + digits;
+    }
+}
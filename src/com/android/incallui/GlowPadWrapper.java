@@ -18,6 +18,7 @@ package com.android.incallui;
 
 import android.content.Context;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 import android.telecom.VideoProfile;
 import android.util.AttributeSet;
@@ -35,7 +36,8 @@ public class GlowPadWrapper extends GlowPadView implements GlowPadView.OnTrigger
     private static final boolean ENABLE_PING_AUTO_REPEAT = true;
     private static final long PING_REPEAT_DELAY_MS = 1200;
 
-    private final Handler mPingHandler = new Handler() {
+    // May be inflated off the main thread, see InCallViewPrewarmer.
+    private final Handler mPingHandler = new Handler(Looper.getMainLooper()) {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
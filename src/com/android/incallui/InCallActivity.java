@@ -168,6 +168,8 @@ public class InCallActivity extends Activity {
 
         // Inflate everything in incall_screen.xml and add it to the screen.
         setContentView(R.layout.incall_screen);
+        InCallViewPrewarmer.getInstance().trackFirstFrame(this);
+        DeferredCreation.onInCallUiCreated();
 
         initializeInCall();
 
@@ -367,7 +369,9 @@ public class InCallActivity extends Activity {
         // BACK is also used to exit out of any "special modes" of the
         // in-call UI:
 
-        if (!mConferenceManagerFragment.isVisible() && !mCallCardFragment.isVisible()) {
+        final boolean isConferenceManagerVisible = mConferenceManagerFragment != null
+                && mConferenceManagerFragment.isVisible();
+        if (!isConferenceManagerVisible && !mCallCardFragment.isVisible()) {
             return;
         }
 
@@ -375,7 +379,7 @@ public class InCallActivity extends Activity {
             // Notify CallButtonPresenter to remove Dialpad and update UI
             mCallButtonFragment.getPresenter().showDialpadClicked(false);
             return;
-        } else if (mConferenceManagerFragment.isVisible()) {
+        } else if (isConferenceManagerVisible) {
             showConferenceCallManager(false);
             return;
         }
@@ -657,9 +661,9 @@ public class InCallActivity extends Activity {
         }
 
         if (mConferenceManagerFragment == null) {
+            // Only there if it was shown before the activity was recreated.
             mConferenceManagerFragment = (ConferenceManagerFragment) getFragmentManager()
-                    .findFragmentById(R.id.conferenceManagerFragment);
-            mConferenceManagerFragment.getView().setVisibility(View.INVISIBLE);
+                    .findFragmentById(R.id.conferenceManagerFragmentContainer);
         }
     }
 
@@ -687,6 +691,7 @@ public class InCallActivity extends Activity {
         // If the dialpad is being shown and it has not already been loaded, replace the dialpad
         // placeholder with the actual fragment before continuing.
         if (mDialpadFragment == null && showDialpad) {
+            final DeferredCreation creation = DeferredCreation.begin("dialpad");
             final FragmentTransaction loadTransaction = mChildFragmentManager.beginTransaction();
             View fragmentContainer = findViewById(R.id.dialpadFragmentContainer);
             mDialpadFragment = new DialpadFragment();
@@ -694,6 +699,7 @@ public class InCallActivity extends Activity {
                     DialpadFragment.class.getName());
             loadTransaction.commitAllowingStateLoss();
             mChildFragmentManager.executePendingTransactions();
+            creation.end();
         }
 
         final FragmentTransaction ft = mChildFragmentManager.beginTransaction();
@@ -737,6 +743,20 @@ public class InCallActivity extends Activity {
      *                         should be hidden.
      */
     public void showConferenceCallManager(boolean show) {
+        // Created when first shown, as most calls are never conferences.
+        if (mConferenceManagerFragment == null) {
+            if (!show) {
+                return;
+            }
+            final DeferredCreation creation = DeferredCreation.begin("conference manager");
+            mConferenceManagerFragment = new ConferenceManagerFragment();
+            getFragmentManager().beginTransaction()
+                    .add(R.id.conferenceManagerFragmentContainer, mConferenceManagerFragment,
+                            ConferenceManagerFragment.class.getName())
+                    .commitAllowingStateLoss();
+            getFragmentManager().executePendingTransactions();
+            creation.end();
+        }
         mConferenceManagerFragment.setVisible(show);
 
         // Need to hide the call card fragment to ensure that accessibility service does not try to
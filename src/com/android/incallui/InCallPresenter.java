@@ -25,6 +25,7 @@ import android.graphics.Point;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemProperties;
 import android.telecom.DisconnectCause;
 import android.telecom.PhoneAccount;
 import android.telecom.Phone;
@@ -68,6 +69,9 @@ public class InCallPresenter implements CallList.Listener, InCallPhoneListener {
 
     private static final Bundle EMPTY_EXTRAS = new Bundle();
 
+    /** Set to false to disable warming up the contact cache ahead of calls. */
+    private static final String PROPERTY_CONTACT_PREFETCH = "persist.incallui.contact_prefetch";
+
     private static InCallPresenter sInCallPresenter;
 
     /**
@@ -238,6 +242,9 @@ public class InCallPresenter implements CallList.Listener, InCallPhoneListener {
         mContext = context;
 
         mContactInfoCache = ContactInfoCache.getInstance(context);
+        if (SystemProperties.getBoolean(PROPERTY_CONTACT_PREFETCH, true)) {
+            mContactInfoCache.prefetch();
+        }
 
         mStatusBarNotifier = new StatusBarNotifier(context, mContactInfoCache);
         addListener(mStatusBarNotifier);
@@ -462,6 +469,10 @@ public class InCallPresenter implements CallList.Listener, InCallPhoneListener {
      */
     @Override
     public void onIncomingCall(Call call) {
+        if (mInCallActivity == null && mContext != null) {
+            // Get the views of the in-call UI ready while the activity is being started.
+            InCallViewPrewarmer.getInstance().prewarm(mContext, call);
+        }
         InCallState newState = startOrFinishUi(InCallState.INCOMING);
         InCallState oldState = mInCallState;
 
@@ -784,6 +795,8 @@ public class InCallPresenter implements CallList.Listener, InCallPhoneListener {
         for (InCallUiListener listener : mInCallUiListeners) {
             listener.onUiShowing(showing);
         }
+
+        TickScheduler.getInstance().onUiShowing(showing);
     }
 
     /*package*/
@@ -831,8 +844,19 @@ public class InCallPresenter implements CallList.Listener, InCallPhoneListener {
     }
 
     public void onPostDialCharWait(String callId, String chars) {
+        if (mContext != null) {
+            PostDialEngine.getInstance().onPostDialWait(mContext, callId, chars);
+        }
+    }
+
+    /**
+     * Asks the user whether to send the rest of a post-dial sequence.
+     */
+    public void showPostDialWaitPrompt(String callId, String chars) {
         if (isActivityStarted()) {
             mInCallActivity.showPostCharWaitDialog(callId, chars);
+        } else {
+            PostDialEngine.getInstance().cancel(callId);
         }
     }
 
@@ -1194,6 +1218,8 @@ public class InCallPresenter implements CallList.Listener, InCallPhoneListener {
             }
             mContactInfoCache = null;
 
+            InCallViewPrewarmer.getInstance().clear();
+
             if (mProximitySensor != null) {
                 removeListener(mProximitySensor);
                 mProximitySensor.tearDown();
@@ -1209,6 +1235,7 @@ public class InCallPresenter implements CallList.Listener, InCallPhoneListener {
 
             if (mInCallVibrationHandler != null) {
                 removeListener(mInCallVibrationHandler);
+                TickScheduler.getInstance().unsubscribe(mInCallVibrationHandler);
             }
             mInCallVibrationHandler = null;
 
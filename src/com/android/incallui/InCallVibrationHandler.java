@@ -18,18 +18,16 @@ package com.android.incallui;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.Handler;
-import android.os.Message;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
 import android.telecom.DisconnectCause;
 
 import com.android.incallui.InCallPresenter.InCallState;
 
-public class InCallVibrationHandler extends Handler implements
-        InCallPresenter.InCallStateListener {
+public class InCallVibrationHandler implements
+        InCallPresenter.InCallStateListener, TickScheduler.Listener {
 
-    private static final int MSG_VIBRATE_45_SEC = 1;
+    private static final long VIBRATE_45_SEC_INTERVAL_MS = 60000;
 
     private static final String KEY_VIBRATE_CALL_WAITING = "incall_vibrate_call_waiting";
     private static final String KEY_VIBRATE_OUTGOING = "incall_vibrate_outgoing";
@@ -46,13 +44,9 @@ public class InCallVibrationHandler extends Handler implements
     }
 
     @Override
-    public void handleMessage(Message msg) {
-        switch (msg.what) {
-            case MSG_VIBRATE_45_SEC:
-                vibrate(70, 0, 0);
-                sendEmptyMessageDelayed(MSG_VIBRATE_45_SEC, 60000);
-                break;
-        }
+    public void onTick() {
+        // The 45 second mark of each minute of the call.
+        vibrate(70, 0, 0);
     }
 
     @Override
@@ -112,13 +106,12 @@ public class InCallVibrationHandler extends Handler implements
             vibrate(50, 100, 50);
         }
         // Stop 45-second vibration
-        removeMessages(MSG_VIBRATE_45_SEC);
+        TickScheduler.getInstance().unsubscribe(this);
     }
 
     private void start45SecondVibration(long callDurationMillis) {
         callDurationMillis = callDurationMillis % 60000;
         Log.d(this, "vibrate start @" + callDurationMillis);
-        removeMessages(MSG_VIBRATE_45_SEC);
 
         long timer;
         if (callDurationMillis > 45000) {
@@ -128,7 +121,8 @@ public class InCallVibrationHandler extends Handler implements
             // Schedule the alarm at the first 45 second mark
             timer = 45000 - callDurationMillis;
         }
-        sendEmptyMessageDelayed(MSG_VIBRATE_45_SEC, timer);
+        TickScheduler.getInstance().subscribe(this, VIBRATE_45_SEC_INTERVAL_MS, timer,
+                false /* uiOnly */);
     }
 
     private void vibrate(int v1, int p1, int v2) {
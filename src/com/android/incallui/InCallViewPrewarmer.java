@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.MutableContextWrapper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.SparseArray;
+import android.view.ContextThemeWrapper;
+import android.view.InflateException;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Inflates the views of the in-call fragments on a worker thread as soon as a call starts
+ * ringing, so that {@link InCallActivity} can adopt them rather than inflating them on the
+ * main thread before its first frame.
+ *
+ * Only layouts without {@code <fragment>} tags can be inflated outside the activity: the
+ * answer GlowPad and the call buttons. Each is inflated in a {@link MutableContextWrapper}
+ * that is pointed at the activity when the view is adopted. Views are dropped if the
+ * orientation changed in between, and when the in-call UI is cleaned up.
+ *
+ * The time from ring to the first frame of the activity is logged, separately for
+ * activities that did and didn't adopt prewarmed views, when the activity is started while
+ * the call that rang is still the incoming call.
+ */
+public class InCallViewPrewarmer {
+    private static final String TAG = InCallViewPrewarmer.class.getSimpleName();
+
+    private static final int[] LAYOUTS = {
+        R.layout.answer_fragment,
+        R.layout.call_button_fragment
+    };
+
+    private static InCallViewPrewarmer sInstance;
+
+    private final Handler mWorkerHandler;
+
+    // Guarded by this.
+    private final SparseArray<View> mViews = new SparseArray<View>();
+    private int mOrientation;
+    private int mGeneration;
+    private boolean mRequested;
+
+    // Only used on the main thread.
+    private long mRingTime;
+    private String mRingCallId;
+    private boolean mAdopted;
+    private int mHits;
+    private int mMisses;
+    private final LatencyHistogram mPrewarmedFirstFrames = new LatencyHistogram("prewarmed");
+    private final LatencyHistogram mColdFirstFrames = new LatencyHistogram("cold");
+
+    public static synchronized InCallViewPrewarmer getInstance() {
+        if (sInstance == null) {
+            sInstance = new InCallViewPrewarmer();
+        }
+        return sInstance;
+    }
+
+    private InCallViewPrewarmer() {
+        final HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mWorkerHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Starts inflating the views, unless they are already there. Called from the main thread
+     * when a call starts ringing.
+     */
+    public void prewarm(Context context, Call call) {
+        mRingTime = SystemClock.elapsedRealtime();
+        mRingCallId = call.getId();
+        mAdopted = false;
+        final int orientation = context.getResources().getConfiguration().orientation;
+        final int generation;
+        synchronized (this) {
+            if (mRequested && mOrientation == orientation) {
+                return;
+            }
+            clearLocked();
+            mRequested = true;
+            mOrientation = orientation;
+            generation = mGeneration;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                inflate(appContext, generation);
+            }
+        });
+    }
+
+    /**
+     * Hands a prewarmed view over to the activity.
+     *
+     * @return the view, or {@code null} if there is none ready, in which case the caller
+     * inflates it as usual.
+     */
+    public View take(int layoutId, Activity activity) {
+        final View view;
+        synchronized (this) {
+            if (!mRequested) {
+                return null;
+            }
+            if (mOrientation != activity.getResources().getConfiguration().orientation) {
+                clearLocked();
+            }
+            view = mViews.get(layoutId);
+            mViews.remove(layoutId);
+        }
+        if (view == null) {
+            mMisses++;
+            return null;
+        }
+        ((MutableContextWrapper) view.getContext()).setBaseContext(activity);
+        mHits++;
+        mAdopted = true;
+        return view;
+    }
+
+    /**
+     * Measures the time from ring to the first frame of the activity, if it was started for
+     * a ringing call. Called when the activity has set its content view.
+     */
+    public void trackFirstFrame(Activity activity) {
+        if (mRingTime == 0) {
+            return;
+        }
+        final long ringTime = mRingTime;
+        final Call incomingCall = CallList.getInstance().getIncomingCall();
+        final boolean forRingingCall = incomingCall != null
+                && incomingCall.getId().equals(mRingCallId);
+        mRingTime = 0;
+        mRingCallId = null;
+        if (!forRingingCall) {
+            mAdopted = false;
+            return;
+        }
+        final ViewTreeObserver observer = activity.getWindow().getDecorView()
+                .getViewTreeObserver();
+        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                if (observer.isAlive()) {
+                    observer.removeOnPreDrawListener(this);
+                }
+                final long elapsed = SystemClock.elapsedRealtime() - ringTime;
+                (mAdopted ? mPrewarmedFirstFrames : mColdFirstFrames).add(elapsed);
+                Log.d(TAG, "Ring to first frame " + elapsed + " ms, "
+                        + (mAdopted ? "prewarmed" : "cold") + "; " + mPrewarmedFirstFrames
+                        + " " + mColdFirstFrames + " hits=" + mHits + " misses=" + mMisses);
+                mAdopted = false;
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Drops any views not adopted yet, and forgets the last ring. Called from the main thread.
+     */
+    public synchronized void clear() {
+        clearLocked();
+        mRingTime = 0;
+        mRingCallId = null;
+        mAdopted = false;
+    }
+
+    private void clearLocked() {
+        mViews.clear();
+        mRequested = false;
+        mGeneration++;
+    }
+
+    /** Runs on the worker thread. */
+    private void inflate(Context appContext, int generation) {
+        for (int layoutId : LAYOUTS) {
+            synchronized (this) {
+                if (generation != mGeneration) {
+                    return;
+                }
+            }
+            final long start = SystemClock.elapsedRealtime();
+            final MutableContextWrapper context = new MutableContextWrapper(
+                    new ContextThemeWrapper(appContext, R.style.Theme_InCallScreen));
+            final View view;
+            try {
+                view = LayoutInflater.from(appContext).cloneInContext(context)
+                        .inflate(layoutId, null, false);
+            } catch (InflateException e) {
+                Log.e(TAG, "Unable to prewarm layout " + layoutId, e);
+                continue;
+            }
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    mViews.put(layoutId, view);
+                }
+            }
+            Log.d(TAG, "Prewarmed layout " + layoutId + " in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+    }
+}
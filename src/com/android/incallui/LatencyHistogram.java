@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+/**
+ * A fixed-bucket histogram of latencies in milliseconds, cheap enough to record on the
+ * main thread. Used to keep track of how long lookups and commands take.
+ */
+public class LatencyHistogram {
+    /** Upper bounds (inclusive) of the buckets; the last bucket is unbounded. */
+    private static final long[] BUCKET_BOUNDS_MS = {
+        10, 25, 50, 100, 250, 500, 1000, 2500, 5000
+    };
+
+    private final String mName;
+    private final int[] mCounts = new int[BUCKET_BOUNDS_MS.length + 1];
+    private int mCount;
+    private long mTotalMs;
+    private long mMaxMs;
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public synchronized void add(long latencyMs) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MS.length && latencyMs > BUCKET_BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        mCounts[bucket]++;
+        mCount++;
+        mTotalMs += latencyMs;
+        mMaxMs = Math.max(mMaxMs, latencyMs);
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMeanMs() {
+        return mCount == 0 ? 0 : mTotalMs / mCount;
+    }
+
+    public synchronized long getMaxMs() {
+        return mMaxMs;
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the given percentile, or the maximum
+     * latency seen if the percentile falls into the unbounded bucket.
+     */
+    public synchronized long getPercentileMs(int percentile) {
+        final int target = (int) Math.ceil(mCount * percentile / 100.0);
+        int seen = 0;
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+            seen += mCounts[i];
+            if (seen >= target) {
+                return Math.min(BUCKET_BOUNDS_MS[i], mMaxMs);
+            }
+        }
+        return mMaxMs;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mTotalMs = 0;
+        mMaxMs = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append(mName).append(": n=").append(mCount)
+                .append(" mean=").append(getMeanMs())
+                .append(" p50<=").append(getPercentileMs(50))
+                .append(" p90<=").append(getPercentileMs(90))
+                .append(" max=").append(mMaxMs).append(" [");
+        for (int i = 0; i < mCounts.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(i < BUCKET_BOUNDS_MS.length ? "<=" + BUCKET_BOUNDS_MS[i] : ">"
+                    + BUCKET_BOUNDS_MS[BUCKET_BOUNDS_MS.length - 1]);
+            sb.append(':').append(mCounts[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import com.android.contacts.common.util.PhoneNumberHelper;
+
+import java.util.Locale;
+
+/**
+ * The parsed forms of a call's number. An instance is created once per call by
+ * {@link Call#getNormalizedNumber()} and shared by the caller info lookup, the contact
+ * cache and call matching, so that the number is only split and normalized once.
+ */
+public final class NormalizedNumber {
+    private static final String SIP_SCHEME_PREFIX = "sip:";
+
+    private final String mRawNumber;
+    private final String mNumber;
+    private final String mForwardingNumber;
+    private final boolean mIsSip;
+    private final String mKey;
+
+    private String mE164CountryIso;
+    private String mE164;
+
+    public NormalizedNumber(String rawNumber) {
+        mRawNumber = rawNumber;
+
+        String number = rawNumber;
+        String forwardingNumber = null;
+        if (!TextUtils.isEmpty(number)) {
+            // Forwarded calls report the number as "<number>&<forwarding number>".
+            final String[] numbers = number.split("&");
+            number = numbers[0];
+            if (numbers.length > 1) {
+                forwardingNumber = numbers[1];
+            }
+        }
+        mNumber = number;
+        mForwardingNumber = forwardingNumber;
+        mIsSip = !TextUtils.isEmpty(number) && PhoneNumberHelper.isUriNumber(number);
+        mKey = mIsSip ? canonicalizeSipAddress(number) : normalizeDigits(number);
+    }
+
+    /** @return the number exactly as it was reported for the call. */
+    public String getRawNumber() {
+        return mRawNumber;
+    }
+
+    /** @return the number of the remote party, without any forwarding number. */
+    public String getNumber() {
+        return mNumber;
+    }
+
+    /** @return the number the call was forwarded from, or {@code null}. */
+    public String getForwardingNumber() {
+        return mForwardingNumber;
+    }
+
+    public boolean isSip() {
+        return mIsSip;
+    }
+
+    /**
+     * @return a country independent key for the number: the canonical SIP address for SIP
+     * calls, otherwise the dialable digits (and leading '+') of the number.
+     */
+    public String getKey() {
+        return mKey;
+    }
+
+    /**
+     * @return the E.164 form of the number for the given country, or {@code null} for SIP
+     * addresses and numbers that can't be formatted. The result is kept for the last country.
+     */
+    public String getE164(String countryIso) {
+        if (mIsSip || TextUtils.isEmpty(mNumber) || TextUtils.isEmpty(countryIso)) {
+            return null;
+        }
+        if (!countryIso.equals(mE164CountryIso)) {
+            mE164 = PhoneNumberUtils.formatNumberToE164(mNumber, countryIso);
+            mE164CountryIso = countryIso;
+        }
+        return mE164;
+    }
+
+    /**
+     * @return the key to cache results for this number under: the E.164 form when there is
+     * one, falling back to {@link #getKey()}.
+     */
+    public String getCacheKey(String countryIso) {
+        final String e164 = getE164(countryIso);
+        return e164 != null ? e164 : mKey;
+    }
+
+    /**
+     * @return {@code true} if this and the given number refer to the same party.
+     */
+    public boolean matches(NormalizedNumber other) {
+        if (TextUtils.equals(mRawNumber, other.mRawNumber)) {
+            return true;
+        }
+        return mKey != null && mKey.equals(other.mKey);
+    }
+
+    private static String canonicalizeSipAddress(String address) {
+        if (address.regionMatches(true, 0, SIP_SCHEME_PREFIX, 0, SIP_SCHEME_PREFIX.length())) {
+            address = address.substring(SIP_SCHEME_PREFIX.length());
+        }
+        final int at = address.indexOf('@');
+        if (at < 0) {
+            return address;
+        }
+        // The user part is case sensitive, the host part is not.
+        return address.substring(0, at + 1) + address.substring(at + 1).toLowerCase(Locale.US);
+    }
+
+    private static String normalizeDigits(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+        final String digits = PhoneNumberUtils.normalizeNumber(number);
+        return TextUtils.isEmpty(digits) ? number : digits;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.telecom.TelecomManager;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import com.android.internal.telephony.TelephonyIntents;
+
+/**
+ * Remembers whether numbers are emergency or voicemail numbers, per subscription, so that
+ * setting up a call with a number seen before doesn't need a binder call to classify it.
+ *
+ * Voicemail numbers are provisioned by the SIM and emergency numbers also depend on the
+ * network, so everything is forgotten when the SIM state, the subscription records, the
+ * service state, the network time zone (i.e. the country) or the locale change. At most
+ * {@link #MAX_ENTRIES} numbers are kept.
+ */
+public class NumberClassificationCache {
+    private static final String TAG = NumberClassificationCache.class.getSimpleName();
+
+    // Bits of a cached classification. A "known" bit is set once the matching
+    // check has been made, since the two checks are requested independently.
+    private static final int EMERGENCY_KNOWN = 1 << 0;
+    private static final int EMERGENCY = 1 << 1;
+    private static final int VOICEMAIL_KNOWN = 1 << 2;
+    private static final int VOICEMAIL = 1 << 3;
+
+    private static final int MAX_ENTRIES = 64;
+
+    private static NumberClassificationCache sInstance;
+
+    private final Context mContext;
+    // Keyed by subscription and number.
+    private final LruCache<String, Integer> mClassifications =
+            new LruCache<String, Integer>(MAX_ENTRIES);
+
+    private final BroadcastReceiver mInvalidationReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(TAG, "Dropping number classifications on " + intent.getAction());
+            clear();
+        }
+    };
+
+    public static synchronized NumberClassificationCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NumberClassificationCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private NumberClassificationCache(Context context) {
+        mContext = context;
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(TelephonyIntents.ACTION_SIM_STATE_CHANGED);
+        filter.addAction(TelephonyIntents.ACTION_SUBINFO_RECORD_UPDATED);
+        filter.addAction(TelephonyIntents.ACTION_SERVICE_STATE_CHANGED);
+        filter.addAction(TelephonyIntents.ACTION_NETWORK_SET_TIME);
+        filter.addAction(TelephonyIntents.ACTION_NETWORK_SET_TIMEZONE);
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        mContext.registerReceiver(mInvalidationReceiver, filter);
+    }
+
+    /**
+     * @return {@code true} if the number is an emergency number at the current location.
+     */
+    public boolean isEmergencyNumber(String number, int subId) {
+        if (TextUtils.isEmpty(number)) {
+            return false;
+        }
+        final String key = new NormalizedNumber(number).getKey();
+        final int cached = get(subId, key);
+        if ((cached & EMERGENCY_KNOWN) != 0) {
+            return (cached & EMERGENCY) != 0;
+        }
+
+        final boolean isEmergency = PhoneNumberUtils.isLocalEmergencyNumber(mContext, number);
+        put(subId, key, EMERGENCY_KNOWN | (isEmergency ? EMERGENCY : 0));
+        return isEmergency;
+    }
+
+    /**
+     * @return {@code true} if the number of the call is the voicemail number of the
+     * call's phone account.
+     */
+    public boolean isVoiceMailNumber(Call call) {
+        final String key = call.getNormalizedNumber().getKey();
+        final int subId = call.getSubId();
+        final int cached = key == null ? 0 : get(subId, key);
+        if ((cached & VOICEMAIL_KNOWN) != 0) {
+            return (cached & VOICEMAIL) != 0;
+        }
+
+        final TelecomManager telecomManager =
+                (TelecomManager) mContext.getSystemService(Context.TELECOM_SERVICE);
+        final boolean isVoiceMail = telecomManager.isVoiceMailNumber(
+                call.getTelecommCall().getDetails().getAccountHandle(), call.getNumber());
+        if (key != null) {
+            put(subId, key, VOICEMAIL_KNOWN | (isVoiceMail ? VOICEMAIL : 0));
+        }
+        return isVoiceMail;
+    }
+
+    public synchronized void clear() {
+        mClassifications.evictAll();
+    }
+
+    private synchronized int get(int subId, String key) {
+        final Integer cached = mClassifications.get(subId + ":" + key);
+        return cached == null ? 0 : cached;
+    }
+
+    private synchronized void put(int subId, String key, int bits) {
+        final String subKey = subId + ":" + key;
+        final Integer cached = mClassifications.get(subKey);
+        mClassifications.put(subKey, cached == null ? bits : cached | bits);
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * The state the user expects calls to be in after hold, swap or merge, ahead of telecom
+ * confirming it.
+ *
+ * When an operation is issued its expected outcome is recorded as pending, and listeners
+ * update the UI straight away: a held call shows as held, and swap or merge can't be pressed
+ * again. The expectation is dropped when a {@link CallList} or call details update confirms
+ * it, or rolled back, with the UI showing the real state again, if nothing has confirmed it
+ * within {@link #CONFIRMATION_TIMEOUT_MS}.
+ *
+ * The time until the UI showed the expected state and the time until telecom confirmed it
+ * are measured separately. Must be used from the main thread.
+ */
+public class OptimisticCallState implements CallList.Listener,
+        InCallPresenter.InCallDetailsListener {
+    private static final String TAG = OptimisticCallState.class.getSimpleName();
+
+    static final long CONFIRMATION_TIMEOUT_MS = 3000;
+
+    public enum Operation {
+        HOLD(Call.State.ONHOLD),
+        UNHOLD(Call.State.ACTIVE),
+        // No state of their own to expect: a swap is confirmed by the conference's children
+        // changing order or state, a merge by the call changing state or gaining children.
+        SWAP(Call.State.INVALID),
+        MERGE(Call.State.INVALID);
+
+        final int expectedState;
+
+        Operation(int expectedState) {
+            this.expectedState = expectedState;
+        }
+    }
+
+    public interface Listener {
+        /** Called when an expectation was added, confirmed or rolled back. */
+        public void onOptimisticStateChanged();
+    }
+
+    private static OptimisticCallState sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final HashMap<String, Pending> mPending = Maps.newHashMap();
+    private final Set<Listener> mListeners = Sets.newHashSet();
+
+    private final LatencyHistogram mFeedbackLatencies = new LatencyHistogram("feedback");
+    private final LatencyHistogram mConfirmationLatencies =
+            new LatencyHistogram("confirmation");
+    private int mRollbacks;
+
+    private final class Pending implements Runnable {
+        final String callId;
+        final Operation operation;
+        final int initialState;
+        final int initialChildCount;
+        final String initialChildren;
+        final long startTime;
+
+        Pending(Call call, Operation operation, long startTime) {
+            callId = call.getId();
+            this.operation = operation;
+            initialState = call.getState();
+            initialChildCount = call.getChildCallIds().size();
+            initialChildren = getChildren(call);
+            this.startTime = startTime;
+        }
+
+        boolean isConfirmedBy(Call call) {
+            if (operation.expectedState != Call.State.INVALID) {
+                return call.getState() == operation.expectedState;
+            }
+            if (operation == Operation.SWAP) {
+                return !initialChildren.equals(getChildren(call));
+            }
+            return call.getState() != initialState
+                    || call.getChildCallIds().size() != initialChildCount;
+        }
+
+        /** Deadline expired. */
+        @Override
+        public void run() {
+            if (mPending.get(callId) == this) {
+                Log.w(this, operation + " of " + callId + " not confirmed within "
+                        + CONFIRMATION_TIMEOUT_MS + " ms, rolling back");
+                mPending.remove(callId);
+                mRollbacks++;
+                notifyListeners();
+            }
+        }
+    }
+
+    public static synchronized OptimisticCallState getInstance() {
+        if (sInstance == null) {
+            sInstance = new OptimisticCallState();
+        }
+        return sInstance;
+    }
+
+    private OptimisticCallState() {
+        CallList.getInstance().addListener(this);
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Records that an operation was issued for a call, and shows its expected outcome.
+     * Replaces any expectation already pending for the call.
+     */
+    public void expect(Call call, Operation operation) {
+        if (call == null) {
+            return;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        if (mPending.isEmpty()) {
+            // Details listeners are cleared when the in-call UI is torn down.
+            InCallPresenter.getInstance().addDetailsListener(this);
+        }
+        final Pending pending = new Pending(call, operation, start);
+        final Pending previous = mPending.put(pending.callId, pending);
+        if (previous != null) {
+            mHandler.removeCallbacks(previous);
+        }
+        mHandler.postDelayed(pending, CONFIRMATION_TIMEOUT_MS);
+
+        notifyListeners();
+        mFeedbackLatencies.add(SystemClock.elapsedRealtime() - start);
+    }
+
+    /**
+     * @return the state the call is expected to be in, which is its current state unless a
+     * hold or unhold of it is pending.
+     */
+    public int getState(Call call) {
+        final Pending pending = mPending.get(call.getId());
+        if (pending != null && pending.operation.expectedState != Call.State.INVALID) {
+            return pending.operation.expectedState;
+        }
+        return call.getState();
+    }
+
+    /**
+     * @return whether the operation was issued for the call and not confirmed yet.
+     */
+    public boolean isPending(Call call, Operation operation) {
+        final Pending pending = call == null ? null : mPending.get(call.getId());
+        return pending != null && pending.operation == operation;
+    }
+
+    /**
+     * @return a one line summary of the feedback and confirmation latencies.
+     */
+    public String getStats() {
+        return mFeedbackLatencies + " " + mConfirmationLatencies + " rollbacks=" + mRollbacks;
+    }
+
+    @Override
+    public void onCallListChange(CallList callList) {
+        reconcile(callList);
+    }
+
+    @Override
+    public void onDisconnect(Call call) {
+        reconcile(CallList.getInstance());
+    }
+
+    @Override
+    public void onDetailsChanged(Call call, android.telecom.Call.Details details) {
+        reconcile(CallList.getInstance());
+    }
+
+    @Override
+    public void onIncomingCall(Call call) {
+    }
+
+    @Override
+    public void onUpgradeToVideo(Call call) {
+    }
+
+    private void reconcile(CallList callList) {
+        if (mPending.isEmpty()) {
+            return;
+        }
+        boolean changed = false;
+        for (Pending pending : new ArrayList<Pending>(mPending.values())) {
+            final Call call = callList.getCallById(pending.callId);
+            if (call == null || call.getState() == Call.State.DISCONNECTED) {
+                // Gone, e.g. merged into a conference; nothing left to show.
+                mPending.remove(pending.callId);
+                mHandler.removeCallbacks(pending);
+                changed = true;
+            } else if (pending.isConfirmedBy(call)) {
+                confirm(pending);
+                changed = true;
+            }
+        }
+        if (changed) {
+            notifyListeners();
+        }
+    }
+
+    /**
+     * @return the children of a conference in order, with their states, which tells which of
+     * them is active.
+     */
+    private static String getChildren(Call call) {
+        final StringBuilder sb = new StringBuilder();
+        for (String childId : call.getChildCallIds()) {
+            final Call child = CallList.getInstance().getCallById(childId);
+            sb.append(childId).append(':')
+                    .append(child != null ? child.getState() : Call.State.INVALID).append(',');
+        }
+        return sb.toString();
+    }
+
+    private void confirm(Pending pending) {
+        mPending.remove(pending.callId);
+        mHandler.removeCallbacks(pending);
+        mConfirmationLatencies.add(SystemClock.elapsedRealtime() - pending.startTime);
+        Log.d(TAG, pending.operation + " of " + pending.callId + " confirmed, " + getStats());
+    }
+
+    private void notifyListeners() {
+        if (mPending.isEmpty()) {
+            InCallPresenter.getInstance().removeDetailsListener(this);
+        }
+        for (Listener listener : mListeners) {
+            listener.onOptimisticStateChanged();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.android.incallui.service.PhoneNumberService;
+
+/**
+ * Runs remote lookups of a {@link PhoneNumberService} with a deadline, so that a slow
+ * provider can't leave the call card waiting indefinitely.
+ *
+ * <ul>
+ * <li>Each request is answered with a miss if the service hasn't replied within
+ * {@link #DEFAULT_DEADLINE_MS}.</li>
+ * <li>Optionally, a second (hedged) request is issued if the first hasn't replied within
+ * {@link #HEDGE_DELAY_MS}; whichever replies first wins.</li>
+ * <li>After {@link #FAILURE_THRESHOLD} consecutive timeouts the service is skipped for a
+ * backoff period that doubles with every further trip, up to {@link #MAX_BACKOFF_MS}.</li>
+ * </ul>
+ *
+ * All methods and callbacks run on the main thread.
+ */
+public class PhoneNumberLookupExecutor implements PhoneNumberService {
+    private static final String TAG = PhoneNumberLookupExecutor.class.getSimpleName();
+
+    static final long DEFAULT_DEADLINE_MS = 5000;
+    static final long HEDGE_DELAY_MS = 1500;
+    static final int FAILURE_THRESHOLD = 3;
+    static final long BASE_BACKOFF_MS = 10000;
+    static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+
+    private final PhoneNumberService mService;
+    private final boolean mHedgingEnabled;
+    private final long mDeadlineMs;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final LatencyHistogram mLatencies = new LatencyHistogram("remote lookup");
+    private int mTimeouts;
+    private int mHedgedRequests;
+    private int mHedgeWins;
+    private int mRejectedRequests;
+
+    private int mConsecutiveFailures;
+    private int mBreakerTrips;
+    private long mBreakerOpenUntil;
+
+    public PhoneNumberLookupExecutor(PhoneNumberService service, boolean hedgingEnabled) {
+        this(service, hedgingEnabled, DEFAULT_DEADLINE_MS);
+    }
+
+    public PhoneNumberLookupExecutor(PhoneNumberService service, boolean hedgingEnabled,
+            long deadlineMs) {
+        mService = service;
+        mHedgingEnabled = hedgingEnabled;
+        mDeadlineMs = deadlineMs;
+    }
+
+    @Override
+    public void getPhoneNumberInfo(String phoneNumber, NumberLookupListener listener,
+            ImageLookupListener imageListener, boolean isIncoming) {
+        final long now = SystemClock.elapsedRealtime();
+        if (now < mBreakerOpenUntil) {
+            Log.d(TAG, "Remote lookup skipped, service backing off for "
+                    + (mBreakerOpenUntil - now) + " ms");
+            mRejectedRequests++;
+            listener.onPhoneNumberInfoComplete(null);
+            return;
+        }
+
+        new Request(phoneNumber, listener, imageListener, isIncoming).start();
+    }
+
+    /**
+     * @return a one line summary of the lookup latencies and failure counters. Timed out
+     * lookups are included in the latencies at the deadline.
+     */
+    public String getStats() {
+        return mLatencies + " timeouts=" + mTimeouts + " hedged=" + mHedgedRequests
+                + " hedgeWins=" + mHedgeWins + " rejected=" + mRejectedRequests
+                + " breakerTrips=" + mBreakerTrips;
+    }
+
+    private void onSuccess(long latencyMs) {
+        mLatencies.add(latencyMs);
+        mConsecutiveFailures = 0;
+        mBreakerTrips = 0;
+    }
+
+    private void onTimeout() {
+        // Counted at the deadline, the latency the caller actually saw, so that slow
+        // replies don't drop out of the percentiles.
+        mLatencies.add(mDeadlineMs);
+        mTimeouts++;
+        mConsecutiveFailures++;
+        if (mConsecutiveFailures >= FAILURE_THRESHOLD) {
+            final long backoff = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << mBreakerTrips);
+            mBreakerOpenUntil = SystemClock.elapsedRealtime() + backoff;
+            mBreakerTrips = Math.min(mBreakerTrips + 1, 16);
+            mConsecutiveFailures = 0;
+            Log.w(this, "Remote lookup service timed out " + FAILURE_THRESHOLD
+                    + " times, backing off for " + backoff + " ms");
+        }
+    }
+
+    /**
+     * A single lookup, made of one or two attempts against the service.
+     */
+    private class Request implements Runnable {
+        private final String mPhoneNumber;
+        private final NumberLookupListener mListener;
+        private final ImageLookupListener mImageListener;
+        private final boolean mIsIncoming;
+        private final long mStartTime = SystemClock.elapsedRealtime();
+        private Attempt mWinner;
+        private boolean mDone;
+
+        private final Runnable mHedgeRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (!mDone) {
+                    Log.d(TAG, "Remote lookup slow, sending hedged request");
+                    mHedgedRequests++;
+                    attempt(true);
+                }
+            }
+        };
+
+        Request(String phoneNumber, NumberLookupListener listener,
+                ImageLookupListener imageListener, boolean isIncoming) {
+            mPhoneNumber = phoneNumber;
+            mListener = listener;
+            mImageListener = imageListener;
+            mIsIncoming = isIncoming;
+        }
+
+        void start() {
+            mHandler.postDelayed(this, mDeadlineMs);
+            if (mHedgingEnabled && HEDGE_DELAY_MS < mDeadlineMs) {
+                mHandler.postDelayed(mHedgeRunnable, HEDGE_DELAY_MS);
+            }
+            attempt(false);
+        }
+
+        private void attempt(boolean hedged) {
+            final Attempt attempt = new Attempt(this, hedged);
+            mService.getPhoneNumberInfo(mPhoneNumber, attempt, attempt, mIsIncoming);
+        }
+
+        /** Deadline expired. */
+        @Override
+        public void run() {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            mHandler.removeCallbacks(mHedgeRunnable);
+            Log.d(TAG, "Remote lookup missed its deadline of " + mDeadlineMs + " ms");
+            onTimeout();
+            mListener.onPhoneNumberInfoComplete(null);
+        }
+
+        void onAttemptComplete(Attempt attempt, PhoneNumberInfo info) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            mWinner = attempt;
+            mHandler.removeCallbacks(this);
+            mHandler.removeCallbacks(mHedgeRunnable);
+            if (attempt.mHedged) {
+                mHedgeWins++;
+            }
+            onSuccess(SystemClock.elapsedRealtime() - mStartTime);
+            mListener.onPhoneNumberInfoComplete(info);
+        }
+
+        void onAttemptImageComplete(Attempt attempt, Bitmap bitmap) {
+            if (attempt == mWinner && mImageListener != null) {
+                mImageListener.onImageFetchComplete(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Receives the callbacks of one attempt and hands them to its request on the main
+     * thread.
+     */
+    private class Attempt implements NumberLookupListener, ImageLookupListener {
+        private final Request mRequest;
+        private final boolean mHedged;
+
+        Attempt(Request request, boolean hedged) {
+            mRequest = request;
+            mHedged = hedged;
+        }
+
+        @Override
+        public void onPhoneNumberInfoComplete(final PhoneNumberInfo info) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mRequest.onAttemptComplete(Attempt.this, info);
+                }
+            });
+        }
+
+        @Override
+        public void onImageFetchComplete(final Bitmap bitmap) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mRequest.onAttemptImageComplete(Attempt.this, bitmap);
+                }
+            });
+        }
+    }
+}
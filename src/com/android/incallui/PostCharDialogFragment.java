@@ -51,7 +51,14 @@ public class PostCharDialogFragment extends DialogFragment {
         builder.setPositiveButton(R.string.pause_prompt_yes, new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int whichButton) {
-                TelecomAdapter.getInstance().postDialContinue(mCallId, true);
+                PostDialEngine.getInstance().proceed(mCallId, false);
+            }
+        });
+        builder.setNeutralButton(R.string.pause_prompt_always,
+                new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int whichButton) {
+                PostDialEngine.getInstance().proceed(mCallId, true);
             }
         });
         builder.setNegativeButton(R.string.pause_prompt_no, new DialogInterface.OnClickListener() {
@@ -70,6 +77,6 @@ public class PostCharDialogFragment extends DialogFragment {
     public void onCancel(DialogInterface dialog) {
         super.onCancel(dialog);
 
-        TelecomAdapter.getInstance().postDialContinue(mCallId, false);
+        PostDialEngine.getInstance().cancel(mCallId);
     }
 }
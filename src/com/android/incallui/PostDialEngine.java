@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Sends the rest of a post-dial sequence, such as the PIN after a conference bridge number,
+ * once telephony stops at its first wait.
+ *
+ * The remaining sequence is parsed once into bursts of digits, pauses ({@code ','}) and waits
+ * ({@code ';'}). Bursts are played through the {@link DtmfSequencer}, so the main thread only
+ * wakes once per burst or pause; each pause lasts {@code R.integer.config_post_dial_pause_ms}.
+ * At a wait the user is asked whether to go on, unless they chose to always go on for the
+ * number, in which case every wait is passed without asking for {@link #TRUST_DURATION_MS}.
+ * Only a hash of trusted numbers is kept, with the time the trust expires.
+ *
+ * Listeners are told as each burst has been sent. Must be used from the main thread.
+ */
+public class PostDialEngine implements CallList.Listener {
+    private static final String TAG = PostDialEngine.class.getSimpleName();
+
+    private static final String PREFS_KEY_TRUSTED_NUMBERS = "post_dial_trusted_numbers";
+    /** How long waits are passed without asking after the user chose to always go on. */
+    private static final long TRUST_DURATION_MS = 30 * DateUtils.DAY_IN_MILLIS;
+
+    private static final char DIGITS = '0';
+    private static final char PAUSE = ',';
+    private static final char WAIT = ';';
+
+    public interface Listener {
+        /**
+         * Called when a burst of post-dial digits has been sent.
+         *
+         * @param digits The digits just sent.
+         * @param remaining What is left of the sequence, empty when it is done.
+         */
+        public void onPostDialDigitsSent(String callId, String digits, String remaining);
+    }
+
+    private static PostDialEngine sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final HashMap<String, Sequence> mSequences = Maps.newHashMap();
+    private final Set<Listener> mListeners = Sets.newHashSet();
+    private Context mContext;
+
+    /** A step of a post-dial sequence: a burst of digits, a pause or a wait. */
+    static final class Step {
+        final char type;
+        /** The digits of a burst. */
+        final String digits;
+        /** The number of pauses in a row. */
+        final int count;
+        /** Where the step ends in the sequence. */
+        final int end;
+
+        Step(char type, String digits, int count, int end) {
+            this.type = type;
+            this.digits = digits;
+            this.count = count;
+            this.end = end;
+        }
+    }
+
+    private final class Sequence implements Runnable {
+        final String callId;
+        final String number;
+        final String text;
+        final List<Step> steps;
+        final long startTime = SystemClock.elapsedRealtime();
+        int next;
+        int digitsSent;
+        int waitsPassed;
+
+        Sequence(String callId, String number, String text) {
+            this.callId = callId;
+            this.number = number;
+            this.text = text;
+            steps = parse(text);
+        }
+
+        String getRemaining() {
+            return next == 0 ? text : text.substring(steps.get(next - 1).end);
+        }
+
+        /** A pause is over. */
+        @Override
+        public void run() {
+            if (mSequences.get(callId) == this) {
+                advance(this);
+            }
+        }
+    }
+
+    public static synchronized PostDialEngine getInstance() {
+        if (sInstance == null) {
+            sInstance = new PostDialEngine();
+        }
+        return sInstance;
+    }
+
+    private PostDialEngine() {
+        CallList.getInstance().addListener(this);
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Called when telephony stopped at a wait in the post-dial sequence of a call. Takes over
+     * the rest of the sequence from telephony, and either asks the user whether to go on or,
+     * for a trusted number, goes on straight away.
+     */
+    public void onPostDialWait(Context context, String callId, String remaining) {
+        mContext = context.getApplicationContext();
+        final Call call = CallList.getInstance().getCallById(callId);
+        cancel(callId);
+        // Dropping telephony's own post-dial, so that the sequence is only sent from here. This
+        // goes through the DtmfSequencer too, so it reaches telephony before any burst.
+        TelecomAdapter.getInstance().postDialContinue(callId, false);
+        if (call == null || TextUtils.isEmpty(remaining)) {
+            return;
+        }
+        final Sequence sequence = new Sequence(callId, call.getNumber(), remaining);
+        mSequences.put(callId, sequence);
+        waitForUser(sequence);
+    }
+
+    /**
+     * Goes on with the sequence of a call after the user agreed to.
+     *
+     * @param always Whether to go on without asking for the number from now on.
+     */
+    public void proceed(String callId, boolean always) {
+        final Sequence sequence = mSequences.get(callId);
+        if (sequence == null) {
+            return;
+        }
+        if (always && mContext != null && !TextUtils.isEmpty(sequence.number)) {
+            trust(sequence.number);
+        }
+        advance(sequence);
+    }
+
+    /**
+     * Drops what is left of the sequence of a call, e.g. because the user declined to go on.
+     */
+    public void cancel(String callId) {
+        final Sequence sequence = mSequences.remove(callId);
+        if (sequence != null) {
+            mHandler.removeCallbacks(sequence);
+            Log.d(TAG, "Post-dial of " + callId + " cancelled after " + sequence.digitsSent
+                    + " digits");
+            notifyDigitsSent(sequence, "", "");
+        }
+    }
+
+    @Override
+    public void onCallListChange(CallList callList) {
+        for (String callId : new ArrayList<String>(mSequences.keySet())) {
+            if (callList.getCallById(callId) == null) {
+                cancel(callId);
+            }
+        }
+    }
+
+    @Override
+    public void onDisconnect(Call call) {
+        cancel(call.getId());
+    }
+
+    @Override
+    public void onIncomingCall(Call call) {
+    }
+
+    @Override
+    public void onUpgradeToVideo(Call call) {
+    }
+
+    /**
+     * Splits a post-dial sequence into bursts of digits, runs of pauses and waits. Characters
+     * that are none of these are dropped, and bursts are split so that none is longer than
+     * what the {@link DtmfSequencer} lets wait for a call.
+     */
+    static List<Step> parse(String text) {
+        final ArrayList<Step> steps = new ArrayList<Step>();
+        final StringBuilder digits = new StringBuilder();
+        int i = 0;
+        while (i < text.length()) {
+            final char c = text.charAt(i);
+            if (c == PAUSE || c == WAIT) {
+                if (digits.length() > 0) {
+                    steps.add(new Step(DIGITS, digits.toString(), 0, i));
+                    digits.setLength(0);
+                }
+                int count = 0;
+                while (i < text.length() && text.charAt(i) == c && (c == PAUSE || count == 0)) {
+                    count++;
+                    i++;
+                }
+                steps.add(new Step(c, null, count, i));
+            } else {
+                if (PhoneNumberUtils.is12Key(c)) {
+                    digits.append(c);
+                }
+                i++;
+                if (digits.length() == DtmfSequencer.MAX_QUEUED_TONES) {
+                    steps.add(new Step(DIGITS, digits.toString(), 0, i));
+                    digits.setLength(0);
+                }
+            }
+        }
+        if (digits.length() > 0) {
+            steps.add(new Step(DIGITS, digits.toString(), 0, text.length()));
+        }
+        return steps;
+    }
+
+    private void advance(final Sequence sequence) {
+        while (sequence.next < sequence.steps.size()) {
+            final Step step = sequence.steps.get(sequence.next++);
+            if (step.type == PAUSE) {
+                final long pauseMs = mContext.getResources().getInteger(
+                        R.integer.config_post_dial_pause_ms);
+                mHandler.postDelayed(sequence, step.count * pauseMs);
+                return;
+            } else if (step.type == WAIT) {
+                if (isTrusted(sequence.number)) {
+                    sequence.waitsPassed++;
+                    continue;
+                }
+                waitForUser(sequence);
+                return;
+            } else {
+                final boolean queued = TelecomAdapter.getInstance().playDtmfTones(
+                        sequence.callId, step.digits, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mSequences.get(sequence.callId) == sequence) {
+                            sequence.digitsSent += step.digits.length();
+                            notifyDigitsSent(sequence, step.digits, sequence.getRemaining());
+                            advance(sequence);
+                        }
+                    }
+                });
+                if (!queued) {
+                    cancel(sequence.callId);
+                }
+                return;
+            }
+        }
+        mSequences.remove(sequence.callId);
+        Log.d(TAG, "Post-dial of " + sequence.digitsSent + " digits to " + sequence.callId
+                + " done in " + (SystemClock.elapsedRealtime() - sequence.startTime) + " ms, "
+                + sequence.waitsPassed + " waits passed without asking");
+    }
+
+    private void waitForUser(Sequence sequence) {
+        if (isTrusted(sequence.number)) {
+            sequence.waitsPassed++;
+            advance(sequence);
+        } else {
+            InCallPresenter.getInstance().showPostDialWaitPrompt(sequence.callId,
+                    sequence.getRemaining());
+        }
+    }
+
+    /**
+     * Stores the number as trusted until {@link #TRUST_DURATION_MS} from now, dropping
+     * entries that expired or that are for the same number.
+     */
+    private void trust(String number) {
+        final SharedPreferences prefs = InCallApp.getPrefs(mContext);
+        final long now = System.currentTimeMillis();
+        final String hash = Long.toHexString(RecordingIndex.hashNumber(number));
+        final HashSet<String> trusted = Sets.newHashSet();
+        for (String entry : prefs.getStringSet(PREFS_KEY_TRUSTED_NUMBERS,
+                Sets.<String>newHashSet())) {
+            final int separator = entry.indexOf(':');
+            if (separator > 0 && !hash.equals(entry.substring(0, separator))
+                    && getExpiry(entry, separator) > now) {
+                trusted.add(entry);
+            }
+        }
+        trusted.add(hash + ":" + (now + TRUST_DURATION_MS));
+        prefs.edit().putStringSet(PREFS_KEY_TRUSTED_NUMBERS, trusted).apply();
+    }
+
+    private boolean isTrusted(String number) {
+        if (mContext == null || TextUtils.isEmpty(number)) {
+            return false;
+        }
+        final Set<String> trusted = InCallApp.getPrefs(mContext).getStringSet(
+                PREFS_KEY_TRUSTED_NUMBERS, null);
+        if (trusted == null) {
+            return false;
+        }
+        final String prefix = Long.toHexString(RecordingIndex.hashNumber(number)) + ":";
+        for (String entry : trusted) {
+            if (entry.startsWith(prefix)) {
+                return getExpiry(entry, prefix.length() - 1) > System.currentTimeMillis();
+            }
+        }
+        return false;
+    }
+
+    private static long getExpiry(String entry, int separator) {
+        try {
+            return Long.parseLong(entry.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void notifyDigitsSent(Sequence sequence, String digits, String remaining) {
+        for (Listener listener : mListeners) {
+            listener.onPostDialDigitsSent(sequence.callId, digits, remaining);
+        }
+    }
+}
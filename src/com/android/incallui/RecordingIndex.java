@@ -0,0 +1,484 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.Handler;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import com.google.common.base.Objects;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only index of call recording segments, so that what was recorded survives a
+ * crash or kill of the process mid-call, and recordings can be listed without walking the
+ * storage directory.
+ *
+ * Each segment is one stretch of recording of a call: it is written once when recording
+ * starts and once when it stops. Records carry their length and a CRC, so a record torn by
+ * a crash is detected and cut off when the index is opened. Segments that were never
+ * stopped are reported by {@link #getOpenSegments()}, to be adopted if the recorder is still
+ * recording them or closed with {@link #closeInterrupted}.
+ *
+ * Writes are not synced one by one: a sync is scheduled {@link #SYNC_DELAY_MS} after the
+ * first unsynced write, or done right away once {@link #SYNC_BATCH} records are waiting.
+ * Once the index has grown past {@link #COMPACT_THRESHOLD_BYTES}, opening it drops all but
+ * the open segments and the most recent closed ones.
+ *
+ * Not thread safe; all methods must be called on the looper of the handler given to the
+ * constructor.
+ */
+public class RecordingIndex {
+    private static final String TAG = RecordingIndex.class.getSimpleName();
+
+    private static final int MAGIC = 0x49435249; // "ICRI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    // A record is its payload length, the payload's CRC32 and the payload.
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 4096;
+
+    private static final byte TYPE_START = 1;
+    private static final byte TYPE_STOP = 2;
+
+    static final long SYNC_DELAY_MS = 1000;
+    static final int SYNC_BATCH = 8;
+
+    /** Size past which the index is compacted when opened. */
+    static final long COMPACT_THRESHOLD_BYTES = 64 * 1024;
+    /** How many of the most recent closed segments compacting keeps. */
+    static final int MAX_CLOSED_SEGMENTS = 256;
+
+    /**
+     * A stretch of recording of a call.
+     */
+    public static final class Segment {
+        public final long id;
+        public final String callId;
+        public final long numberHash;
+        public final String fileName;
+        public final long startTime;
+        public final long startOffset;
+        private long mStopTime;
+        private long mEndOffset;
+        private boolean mInterrupted;
+
+        Segment(long id, String callId, long numberHash, String fileName, long startTime,
+                long startOffset) {
+            this.id = id;
+            this.callId = callId;
+            this.numberHash = numberHash;
+            this.fileName = fileName;
+            this.startTime = startTime;
+            this.startOffset = startOffset;
+        }
+
+        public boolean isOpen() {
+            return mStopTime == 0;
+        }
+
+        /** @return when recording stopped, or 0 if the segment is still open. */
+        public long getStopTime() {
+            return mStopTime;
+        }
+
+        /** @return the length of the file when recording stopped. */
+        public long getEndOffset() {
+            return mEndOffset;
+        }
+
+        /** @return whether the segment was closed after a crash rather than stopped. */
+        public boolean isInterrupted() {
+            return mInterrupted;
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("id", id)
+                    .add("callId", callId)
+                    .add("fileName", fileName)
+                    .add("startTime", startTime)
+                    .add("stopTime", mStopTime)
+                    .add("startOffset", startOffset)
+                    .add("endOffset", mEndOffset)
+                    .add("interrupted", mInterrupted)
+                    .toString();
+        }
+    }
+
+    private final File mFile;
+    private final Handler mHandler;
+    private final LinkedHashMap<Long, Segment> mSegments = new LinkedHashMap<Long, Segment>();
+    private final ByteArrayOutputStream mRecordBytes = new ByteArrayOutputStream(256);
+    private final CRC32 mCrc = new CRC32();
+    private RandomAccessFile mOut;
+    private long mNextId = 1;
+    private int mUnsyncedRecords;
+
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sync();
+        }
+    };
+
+    public RecordingIndex(File file, Handler handler) {
+        mFile = file;
+        mHandler = handler;
+    }
+
+    /**
+     * Reads the index, cutting off anything after the last intact record, compacts it if it
+     * has grown too large, and opens it for appending.
+     */
+    public void open() throws IOException {
+        final long start = System.currentTimeMillis();
+        mOut = new RandomAccessFile(mFile, "rw");
+        if (mOut.length() < HEADER_SIZE) {
+            mOut.setLength(0);
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+            mOut.getFD().sync();
+            return;
+        }
+        if (mOut.readInt() != MAGIC || mOut.readInt() != VERSION) {
+            Log.w(this, "Unknown recording index format, starting over");
+            mOut.setLength(HEADER_SIZE);
+            mOut.seek(0);
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+            mOut.getFD().sync();
+            return;
+        }
+
+        final long length = mOut.length();
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)));
+        final byte[] payload = new byte[MAX_RECORD_SIZE];
+        long position = HEADER_SIZE;
+        try {
+            // The header, checked above.
+            in.readInt();
+            in.readInt();
+            while (true) {
+                final int size = in.readInt();
+                final int crc = in.readInt();
+                if (size <= 0 || size > MAX_RECORD_SIZE) {
+                    break;
+                }
+                in.readFully(payload, 0, size);
+                mCrc.reset();
+                mCrc.update(payload, 0, size);
+                if ((int) mCrc.getValue() != crc) {
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(payload, 0, size)));
+                position += RECORD_HEADER_SIZE + size;
+            }
+        } catch (EOFException e) {
+            // Ends within a record header or payload.
+        } finally {
+            in.close();
+        }
+        if (position < length) {
+            Log.w(this, "Dropping " + (length - position) + " bytes of torn recording index");
+            mOut.setLength(position);
+            mOut.getFD().sync();
+        }
+        mOut.seek(position);
+        Log.d(TAG, "Recovered " + mSegments.size() + " recording segments in "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        if (position > COMPACT_THRESHOLD_BYTES) {
+            try {
+                compact();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to compact recording index", e);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the index with only the open segments and the last {@link #MAX_CLOSED_SEGMENTS}
+     * closed ones, to a temporary file that then replaces the index.
+     */
+    private void compact() throws IOException {
+        final long start = System.currentTimeMillis();
+        int closedToDrop = -MAX_CLOSED_SEGMENTS;
+        for (Segment segment : mSegments.values()) {
+            if (!segment.isOpen()) {
+                closedToDrop++;
+            }
+        }
+        final ArrayList<Segment> kept = new ArrayList<Segment>();
+        for (Segment segment : mSegments.values()) {
+            if (!segment.isOpen() && closedToDrop > 0) {
+                closedToDrop--;
+            } else {
+                kept.add(segment);
+            }
+        }
+
+        final File tmpFile = new File(mFile.getPath() + ".tmp");
+        final FileOutputStream fileOut = new FileOutputStream(tmpFile);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Segment segment : kept) {
+                writeStart(beginRecord(), segment);
+                out.write(encodeRecord());
+                if (!segment.isOpen()) {
+                    writeStop(beginRecord(), segment.id, segment.mStopTime,
+                            segment.mEndOffset, segment.mInterrupted);
+                    out.write(encodeRecord());
+                }
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+
+        mOut.close();
+        mOut = null;
+        if (!tmpFile.renameTo(mFile)) {
+            tmpFile.delete();
+            mOut = new RandomAccessFile(mFile, "rw");
+            mOut.seek(mOut.length());
+            throw new IOException("Unable to replace recording index with " + tmpFile);
+        }
+        mOut = new RandomAccessFile(mFile, "rw");
+        mOut.seek(mOut.length());
+
+        final int dropped = mSegments.size() - kept.size();
+        mSegments.clear();
+        for (Segment segment : kept) {
+            mSegments.put(segment.id, segment);
+        }
+        Log.d(TAG, "Compacted recording index, dropping " + dropped + " segments, in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Records that recording of a call has started.
+     *
+     * @return the segment.
+     */
+    public Segment appendStart(String callId, String number, String fileName, long startTime,
+            long startOffset) throws IOException {
+        final Segment segment = new Segment(mNextId++, callId, hashNumber(number), fileName,
+                startTime, startOffset);
+        writeStart(beginRecord(), segment);
+        writeRecord();
+        mSegments.put(segment.id, segment);
+        return segment;
+    }
+
+    /**
+     * Records that recording of a segment has stopped.
+     */
+    public void appendStop(Segment segment, long stopTime, long endOffset, boolean interrupted)
+            throws IOException {
+        writeStop(beginRecord(), segment.id, stopTime, endOffset, interrupted);
+        writeRecord();
+        segment.mStopTime = Math.max(stopTime, 1);
+        segment.mEndOffset = endOffset;
+        segment.mInterrupted = interrupted;
+    }
+
+    /**
+     * Closes a segment left open by a crash, using what is known about its file.
+     */
+    public void closeInterrupted(Segment segment, File file) throws IOException {
+        final boolean exists = file != null && file.exists();
+        appendStop(segment, exists ? file.lastModified() : segment.startTime,
+                exists ? file.length() : segment.startOffset, true);
+    }
+
+    /** @return all segments, oldest first. */
+    public List<Segment> getSegments() {
+        return new ArrayList<Segment>(mSegments.values());
+    }
+
+    /** @return the segments of a call, oldest first. */
+    public List<Segment> getSegments(String callId) {
+        final ArrayList<Segment> segments = new ArrayList<Segment>();
+        for (Segment segment : mSegments.values()) {
+            if (TextUtils.equals(segment.callId, callId)) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    /** @return the segments that were started but never stopped. */
+    public List<Segment> getOpenSegments() {
+        final ArrayList<Segment> segments = new ArrayList<Segment>();
+        for (Segment segment : mSegments.values()) {
+            if (segment.isOpen()) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Syncs any unsynced records to storage.
+     */
+    public void sync() {
+        mHandler.removeCallbacks(mSyncRunnable);
+        if (mOut == null || mUnsyncedRecords == 0) {
+            return;
+        }
+        try {
+            mOut.getFD().sync();
+            mUnsyncedRecords = 0;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to sync recording index", e);
+        }
+    }
+
+    public void close() {
+        sync();
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close recording index", e);
+            }
+            mOut = null;
+        }
+    }
+
+    /**
+     * A hash of the normalized number, so that the index doesn't hold the number itself.
+     */
+    static long hashNumber(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return 0;
+        }
+        final String normalized = PhoneNumberUtils.normalizeNumber(number);
+        // 64 bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < normalized.length(); i++) {
+            hash ^= normalized.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private void apply(DataInputStream in) throws IOException {
+        final byte type = in.readByte();
+        final long id = in.readLong();
+        mNextId = Math.max(mNextId, id + 1);
+        if (type == TYPE_START) {
+            final String callId = in.readUTF();
+            final long numberHash = in.readLong();
+            final String fileName = in.readUTF();
+            final long startTime = in.readLong();
+            final long startOffset = in.readLong();
+            mSegments.put(id, new Segment(id, callId, numberHash, fileName, startTime,
+                    startOffset));
+        } else if (type == TYPE_STOP) {
+            final Segment segment = mSegments.get(id);
+            final long stopTime = in.readLong();
+            final long endOffset = in.readLong();
+            final boolean interrupted = in.readBoolean();
+            if (segment != null) {
+                segment.mStopTime = Math.max(stopTime, 1);
+                segment.mEndOffset = endOffset;
+                segment.mInterrupted = interrupted;
+            }
+        } else {
+            Log.w(this, "Skipping unknown recording index record " + type);
+        }
+    }
+
+    private static void writeStart(DataOutputStream out, Segment segment) throws IOException {
+        out.writeByte(TYPE_START);
+        out.writeLong(segment.id);
+        out.writeUTF(segment.callId != null ? segment.callId : "");
+        out.writeLong(segment.numberHash);
+        out.writeUTF(segment.fileName != null ? segment.fileName : "");
+        out.writeLong(segment.startTime);
+        out.writeLong(segment.startOffset);
+    }
+
+    private static void writeStop(DataOutputStream out, long id, long stopTime, long endOffset,
+            boolean interrupted) throws IOException {
+        out.writeByte(TYPE_STOP);
+        out.writeLong(id);
+        out.writeLong(stopTime);
+        out.writeLong(endOffset);
+        out.writeBoolean(interrupted);
+    }
+
+    private DataOutputStream beginRecord() throws IOException {
+        if (mOut == null) {
+            throw new IOException("Recording index not open");
+        }
+        mRecordBytes.reset();
+        return new DataOutputStream(mRecordBytes);
+    }
+
+    private void writeRecord() throws IOException {
+        // One write, so that a crash tears at most this record.
+        mOut.write(encodeRecord());
+
+        mUnsyncedRecords++;
+        if (mUnsyncedRecords >= SYNC_BATCH) {
+            sync();
+        } else if (mUnsyncedRecords == 1) {
+            mHandler.postDelayed(mSyncRunnable, SYNC_DELAY_MS);
+        }
+    }
+
+    /** @return the record begun by {@link #beginRecord()}, with its length and CRC. */
+    private byte[] encodeRecord() throws IOException {
+        final byte[] payload = mRecordBytes.toByteArray();
+        if (payload.length > MAX_RECORD_SIZE) {
+            throw new IOException("Recording index record too large: " + payload.length);
+        }
+        mCrc.reset();
+        mCrc.update(payload, 0, payload.length);
+        final ByteArrayOutputStream record =
+                new ByteArrayOutputStream(RECORD_HEADER_SIZE + payload.length);
+        final DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(payload.length);
+        out.writeInt((int) mCrc.getValue());
+        out.write(payload);
+        return record.toByteArray();
+    }
+}
@@ -18,6 +18,7 @@ package com.android.incallui;
 
 import android.net.Uri;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 
 import android.app.Notification;
@@ -29,7 +30,10 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.telecom.PhoneAccount;
 import android.telecom.PhoneCapabilities;
 import android.telephony.SubscriptionManager;
@@ -39,7 +43,6 @@ import android.text.BidiFormatter;
 import android.text.TextDirectionHeuristics;
 import android.text.TextUtils;
 
-import com.android.contacts.common.util.BitmapUtil;
 import com.android.incallui.ContactInfoCache.ContactCacheEntry;
 import com.android.incallui.ContactInfoCache.ContactInfoCacheCallback;
 import com.android.incallui.InCallApp.NotificationBroadcastReceiver;
@@ -54,6 +57,11 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener {
 
     private static final long IN_CALL_TIMEOUT = 1000L;
 
+    private static final int MSG_BUILD = 1;
+    // Allow a burst of updates, e.g. dialing to active, then at most two per second.
+    private static final int NOTIFICATION_BURST = 3;
+    private static final long NOTIFICATION_INTERVAL_MS = 500;
+
     private interface NotificationTimer {
         enum State {
             SCHEDULED,
@@ -99,11 +107,26 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener {
     private final ContactInfoCache mContactInfoCache;
     private final NotificationManager mNotificationManager;
     private boolean mIsShowingNotification = false;
-    private int mCallState = Call.State.INVALID;
-    private int mSavedIcon = 0;
-    private int mSavedContent = 0;
-    private Bitmap mSavedLargeIcon;
-    private String mSavedContentTitle;
+    private NotificationContent mSavedContent;
+    private int mNotificationsSuppressed;
+    // Time spent working out notification content, to measure the cost of updates.
+    private long mContentNanos;
+    private int mContentCount;
+    private Bitmap mConferenceIcon;
+
+    // Notifications other than full screen ones are built on a worker thread, rate limited,
+    // with only the latest pending update kept. Every request and cancellation takes a new
+    // sequence number under mNotifyLock, so that a stale build is never posted.
+    private static HandlerThread sWorkerThread;
+    private final Handler mWorkerHandler;
+    private final TokenBucket mRateLimiter =
+            new TokenBucket(NOTIFICATION_BURST, NOTIFICATION_INTERVAL_MS);
+    private final Object mNotifyLock = new Object();
+    private NotificationContent mPendingContent;
+    private int mPendingSequence;
+    private int mNotifySequence;
+    private int mNotificationsSent;
+    private int mNotificationsCoalesced;
 
     public StatusBarNotifier(Context context, ContactInfoCache contactInfoCache) {
         Preconditions.checkNotNull(context);
@@ -112,6 +135,23 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener {
         mContactInfoCache = contactInfoCache;
         mNotificationManager =
                 (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
+        mWorkerHandler = new Handler(getWorkerLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_BUILD) {
+                    onBuildPendingNotification();
+                }
+            }
+        };
+    }
+
+    private static synchronized Looper getWorkerLooper() {
+        if (sWorkerThread == null) {
+            sWorkerThread = new HandlerThread("StatusBarNotifier",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            sWorkerThread.start();
+        }
+        return sWorkerThread.getLooper();
     }
 
     /**
@@ -155,10 +195,22 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener {
      */
     private void cancelInCall() {
         if (mIsShowingNotification) {
-            Log.d(this, "cancelInCall()...");
-            mNotificationManager.cancel(IN_CALL_NOTIFICATION);
+            synchronized (mNotifyLock) {
+                Log.d(this, "cancelInCall()... sent " + mNotificationsSent + ", suppressed "
+                        + mNotificationsSuppressed + " unchanged and coalesced "
+                        + mNotificationsCoalesced + " updates; content took "
+                        + (mContentCount > 0 ? mContentNanos / mContentCount / 1000 : 0)
+                        + "us per update");
+                // Drop any update still waiting to be built.
+                mNotifySequence++;
+                mPendingContent = null;
+                mNotificationManager.cancel(IN_CALL_NOTIFICATION);
+            }
         }
         mIsShowingNotification = false;
+        mSavedContent = null;
+        mContentNanos = 0;
+        mContentCount = 0;
     }
 
     /* package */ static void clearInCallNotification(Context backupContext) {
@@ -275,21 +327,84 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener {
             return;
         }
 
-        final int state = call.getState();
-
         // Check if data has changed; if nothing is different, don't issue another notification.
-        final int iconResId = getIconToDisplay(call);
-        final Bitmap largeIcon = getLargeIconToDisplay(contactInfo, call);
-        final int contentResId = getContentString(call);
-        final String contentTitle = getContentTitle(contactInfo, call);
+        final long start = System.nanoTime();
+        final NotificationContent content = new NotificationContent(call, contactInfo);
+        mContentNanos += System.nanoTime() - start;
+        mContentCount++;
+        if (!checkForChangeAndSaveData(content)) {
+            return;
+        }
+        mIsShowingNotification = true;
 
-        if (!checkForChangeAndSaveData(iconResId, contentResId, largeIcon, contentTitle, state)) {
+        if (content.isFullScreen) {
+            // The full screen intent is what brings up the incoming call UI, so it can't wait
+            // behind the rate limit; it also supersedes any update still being built.
+            final Notification.Builder builder = buildNotification(content);
+            configureFullScreenIntent(call);
+            synchronized (mNotifyLock) {
+                mNotifySequence++;
+                mWorkerHandler.removeMessages(MSG_BUILD);
+                mPendingContent = null;
+                postNotification(builder.build());
+            }
+        } else {
+            synchronized (mNotifyLock) {
+                if (mPendingContent != null) {
+                    mNotificationsCoalesced++;
+                }
+                mPendingContent = content;
+                mPendingSequence = ++mNotifySequence;
+            }
+            if (!mWorkerHandler.hasMessages(MSG_BUILD)) {
+                mWorkerHandler.sendEmptyMessage(MSG_BUILD);
+            }
+        }
+    }
+
+    /**
+     * Builds and posts the latest pending update on the worker thread, at most as often as
+     * the rate limiter allows.
+     */
+    private void onBuildPendingNotification() {
+        final long delay = mRateLimiter.tryAcquire();
+        if (delay > 0) {
+            mWorkerHandler.sendEmptyMessageDelayed(MSG_BUILD, delay);
+            return;
+        }
+
+        final NotificationContent content;
+        final int sequence;
+        synchronized (mNotifyLock) {
+            content = mPendingContent;
+            sequence = mPendingSequence;
+            mPendingContent = null;
+        }
+        if (content == null) {
             return;
         }
 
-        /*
-         * Nothing more to check...build and send it.
-         */
+        final Notification notification = buildNotification(content).build();
+        synchronized (mNotifyLock) {
+            // Drop the update if the notification was cancelled or replaced meanwhile.
+            if (sequence == mNotifySequence) {
+                postNotification(notification);
+            }
+        }
+    }
+
+    /** Must be called with mNotifyLock held. */
+    private void postNotification(Notification notification) {
+        Log.d(this, "Notifying IN_CALL_NOTIFICATION: " + notification);
+        mNotificationManager.notify(IN_CALL_NOTIFICATION, notification);
+        mNotificationsSent++;
+    }
+
+    /**
+     * Builds the notification from its content only, so that it can run off the main thread.
+     * The full screen intent is left to the caller.
+     */
+    private Notification.Builder buildNotification(NotificationContent content) {
         final Notification.Builder builder = getNotificationBuilder();
 
         // Set up the main intent to send the user to the in-call screen
@@ -297,46 +412,39 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener {
         builder.setContentIntent(inCallPendingIntent);
 
         // Set the intent as a full screen intent as well if a call is incoming
-        if ((state == Call.State.INCOMING || state == Call.State.CALL_WAITING) &&
-                !InCallPresenter.getInstance().isShowingInCallUi()) {
-            configureFullScreenIntent(builder, inCallPendingIntent, call);
+        if (content.isFullScreen) {
+            builder.setFullScreenIntent(inCallPendingIntent, true);
             // Set the notification category for incoming calls
             builder.setCategory(Notification.CATEGORY_CALL);
         }
 
         // Set the content
-        builder.setContentText(mContext.getString(contentResId));
-        builder.setSmallIcon(iconResId);
-        builder.setContentTitle(contentTitle);
-        builder.setLargeIcon(largeIcon);
-        builder.setColor(mContext.getResources().getColor(R.color.dialer_theme_color));
-
-        final boolean isVideoUpgradeRequest = call.getSessionModificationState()
-                == Call.SessionModificationState.RECEIVED_UPGRADE_TO_VIDEO_REQUEST;
-        if (isVideoUpgradeRequest) {
+        builder.setContentText(mContext.getString(content.contentResId));
+        builder.setSmallIcon(content.iconResId);
+        builder.setContentTitle(content.contentTitle);
+        builder.setLargeIcon(getLargeIconToDisplay(content));
+        builder.setColor(content.color);
+
+        if (content.isVideoUpgradeRequest) {
             builder.setUsesChronometer(false);
             addDismissUpgradeRequestAction(builder);
             addAcceptUpgradeRequestAction(builder);
         } else {
-            createIncomingCallNotification(call, state, builder);
+            createIncomingCallNotification(content, builder);
         }
 
-        addPersonReference(builder, contactInfo, call);
-
-        /*
-         * Fire off the notification
-         */
-        Notification notification = builder.build();
-        Log.d(this, "Notifying IN_CALL_NOTIFICATION: " + notification);
-        mNotificationManager.notify(IN_CALL_NOTIFICATION, notification);
-        mIsShowingNotification = true;
+        if (content.person != null) {
+            builder.addPerson(content.person);
+        }
+        return builder;
     }
 
     private void createIncomingCallNotification(
-            Call call, int state, Notification.Builder builder) {
+            NotificationContent content, Notification.Builder builder) {
+        final int state = content.state;
         if (state == Call.State.ACTIVE) {
             builder.setUsesChronometer(true);
-            builder.setWhen(call.getConnectTimeMillis());
+            builder.setWhen(content.connectTime);
         } else {
             builder.setUsesChronometer(false);
         }
@@ -348,7 +456,7 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener {
             addHangupAction(builder);
         } else if (state == Call.State.INCOMING || state == Call.State.CALL_WAITING) {
             addDismissAction(builder);
-            if (call.isVideoCall(mContext)) {
+            if (content.isVideoCall) {
                 addVoiceAction(builder);
                 addMoreAction(builder);
             } else {
@@ -362,38 +470,89 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener {
      * are already displaying. If the data is exactly the same, we return false so that
      * we do not issue a new notification for the exact same data.
      */
-    private boolean checkForChangeAndSaveData(int icon, int content, Bitmap largeIcon,
-            String contentTitle, int state) {
-
-        // The two are different:
-        // if new title is not null, it should be different from saved version OR
-        // if new title is null, the saved version should not be null
-        final boolean contentTitleChanged =
-                (contentTitle != null && !contentTitle.equals(mSavedContentTitle)) ||
-                (contentTitle == null && mSavedContentTitle != null);
-
-        // any change means we are definitely updating
-        boolean retval = (mSavedIcon != icon) || (mSavedContent != content) ||
-                (mCallState != state) || (mSavedLargeIcon != largeIcon) ||
-                contentTitleChanged;
-
+    private boolean checkForChangeAndSaveData(NotificationContent content) {
         // If we aren't showing a notification right now, definitely start showing one.
         if (!mIsShowingNotification) {
             Log.d(this, "Showing notification for first time.");
-            retval = true;
+        } else if (content.equals(mSavedContent)) {
+            mNotificationsSuppressed++;
+            Log.v(this, "Data unchanged, not updating notification");
+            return false;
+        } else {
+            Log.d(this, "Data changed.  Showing notification");
         }
-
-        mSavedIcon = icon;
         mSavedContent = content;
-        mCallState = state;
-        mSavedLargeIcon = largeIcon;
-        mSavedContentTitle = contentTitle;
+        return true;
+    }
 
-        if (retval) {
-            Log.d(this, "Data changed.  Showing notification");
+    /**
+     * Everything that is visible in the in-call notification. Two updates with equal content
+     * produce the same notification, so the second one doesn't need to be posted.
+     */
+    private final class NotificationContent {
+        final int state;
+        final int iconResId;
+        final int contentResId;
+        final String contentTitle;
+        // The photo the large icon is made from; compared by identity, since the rounded
+        // icon itself is a new bitmap every time.
+        final Bitmap photo;
+        final Uri photoUri;
+        final String lookupKey;
+        final boolean isConferenceIcon;
+        final boolean isFullScreen;
+        final boolean isVideoCall;
+        final boolean isVideoUpgradeRequest;
+        final long connectTime;
+        final int color;
+        final String person;
+
+        NotificationContent(Call call, ContactCacheEntry contactInfo) {
+            state = call.getState();
+            iconResId = getIconToDisplay(call);
+            contentResId = getContentString(call);
+            contentTitle = getContentTitle(contactInfo, call);
+            photo = contactInfo.photo instanceof BitmapDrawable
+                    ? ((BitmapDrawable) contactInfo.photo).getBitmap() : null;
+            photoUri = contactInfo.displayPhotoUri;
+            lookupKey = contactInfo.lookupKey;
+            isConferenceIcon = call.isConferenceCall()
+                    && !call.can(android.telecom.Call.Details.CAPABILITY_GENERIC_CONFERENCE);
+            isFullScreen = (state == Call.State.INCOMING || state == Call.State.CALL_WAITING)
+                    && !InCallPresenter.getInstance().isShowingInCallUi();
+            isVideoCall = call.isVideoCall(mContext);
+            isVideoUpgradeRequest = call.getSessionModificationState()
+                    == Call.SessionModificationState.RECEIVED_UPGRADE_TO_VIDEO_REQUEST;
+            connectTime = state == Call.State.ACTIVE ? call.getConnectTimeMillis() : 0;
+            color = mContext.getResources().getColor(R.color.dialer_theme_color);
+            person = getPersonReference(contactInfo, call);
         }
 
-        return retval;
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof NotificationContent)) {
+                return false;
+            }
+            final NotificationContent other = (NotificationContent) o;
+            return state == other.state
+                    && iconResId == other.iconResId
+                    && contentResId == other.contentResId
+                    && TextUtils.equals(contentTitle, other.contentTitle)
+                    && photo == other.photo
+                    && isConferenceIcon == other.isConferenceIcon
+                    && isFullScreen == other.isFullScreen
+                    && isVideoCall == other.isVideoCall
+                    && isVideoUpgradeRequest == other.isVideoUpgradeRequest
+                    && connectTime == other.connectTime
+                    && color == other.color
+                    && TextUtils.equals(person, other.person);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(state, iconResId, contentResId, contentTitle,
+                    System.identityHashCode(photo), isFullScreen, connectTime, person);
+        }
     }
 
     /**
@@ -412,38 +571,49 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener {
         return contactInfo.name;
     }
 
-    private void addPersonReference(Notification.Builder builder, ContactCacheEntry contactInfo,
-            Call call) {
-        if (contactInfo.lookupUri != null) {
-            builder.addPerson(contactInfo.lookupUri.toString());
-        } else if (!TextUtils.isEmpty(call.getNumber())) {
-            builder.addPerson(Uri.fromParts(PhoneAccount.SCHEME_TEL,
-                            call.getNumber(), null).toString());
+    /**
+     * Returns the lookup URI of the contact, or the tel URI of the number if there is no
+     * contact. It is resolved once and kept on the cache entry, which lives for as long as
+     * the call, rather than being rebuilt for every update of the ongoing notification.
+     */
+    private String getPersonReference(ContactCacheEntry contactInfo, Call call) {
+        final String number = call.getNumber();
+        if (contactInfo.personReference == null
+                || !Objects.equal(contactInfo.personReferenceLookupUri, contactInfo.lookupUri)
+                || !TextUtils.equals(contactInfo.personReferenceNumber, number)) {
+            if (contactInfo.lookupUri != null) {
+                contactInfo.personReference = contactInfo.lookupUri.toString();
+            } else if (!TextUtils.isEmpty(number)) {
+                contactInfo.personReference =
+                        Uri.fromParts(PhoneAccount.SCHEME_TEL, number, null).toString();
+            } else {
+                return null;
+            }
+            contactInfo.personReferenceLookupUri = contactInfo.lookupUri;
+            contactInfo.personReferenceNumber = number;
         }
+        return contactInfo.personReference;
     }
 
     /**
      * Gets a large icon from the contact info object to display in the notification.
      */
-    private Bitmap getLargeIconToDisplay(ContactCacheEntry contactInfo, Call call) {
-        Bitmap largeIcon = null;
-        if (call.isConferenceCall()
-                && !call.can(android.telecom.Call.Details.CAPABILITY_GENERIC_CONFERENCE)) {
-            largeIcon = BitmapFactory.decodeResource(mContext.getResources(),
-                    R.drawable.img_conference);
-        }
-        if (contactInfo.photo != null && (contactInfo.photo instanceof BitmapDrawable)) {
-            largeIcon = ((BitmapDrawable) contactInfo.photo).getBitmap();
+    private Bitmap getLargeIconToDisplay(NotificationContent content) {
+        if (content.photo != null) {
+            return AvatarStore.getInstance(mContext).getAvatar(content.photoUri,
+                    content.lookupKey, content.photo, true /* circle */);
         }
+        return content.isConferenceIcon ? getConferenceIcon() : null;
+    }
 
-        if (largeIcon != null) {
-            final int height = (int) mContext.getResources().getDimension(
-                    android.R.dimen.notification_large_icon_height);
-            final int width = (int) mContext.getResources().getDimension(
-                    android.R.dimen.notification_large_icon_width);
-            largeIcon = BitmapUtil.getRoundedBitmap(largeIcon, width, height);
+    private synchronized Bitmap getConferenceIcon() {
+        // Made once, and shared by all conference notifications.
+        if (mConferenceIcon == null) {
+            mConferenceIcon = AvatarStore.getInstance(mContext).getAvatar(null, null,
+                    BitmapFactory.decodeResource(mContext.getResources(),
+                            R.drawable.img_conference), true /* circle */);
         }
-        return largeIcon;
+        return mConferenceIcon;
     }
 
     /**
@@ -588,17 +758,16 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener {
     }
 
     /**
-     * Adds fullscreen intent to the builder.
+     * Prepares posting a notification with a fullscreen intent, which
+     * {@link #buildNotification} has already set.
      */
-    private void configureFullScreenIntent(Notification.Builder builder, PendingIntent intent,
-            Call call) {
+    private void configureFullScreenIntent(Call call) {
         // Ok, we actually want to launch the incoming call
         // UI at this point (in addition to simply posting a notification
         // to the status bar).  Setting fullScreenIntent will cause
         // the InCallScreen to be launched immediately *unless* the
         // current foreground activity is marked as "immersive".
-        Log.d(this, "- Setting fullScreenIntent: " + intent);
-        builder.setFullScreenIntent(intent, true);
+        Log.d(this, "- Setting fullScreenIntent");
 
         // Ugly hack alert:
         //
@@ -19,23 +19,89 @@ package com.android.incallui;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
 import android.telecom.InCallAdapter;
 import android.telecom.Phone;
 import android.telecom.PhoneAccountHandle;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Iterator;
 import java.util.List;
 
-/** Wrapper around {@link InCallAdapter} that only forwards calls to the adapter when it's valid. */
+/**
+ * Wrapper around {@link InCallAdapter} that only forwards calls to the adapter when it's valid.
+ *
+ * Commands are resolved against the call list on the main thread, then queued and sent to
+ * telecom from a worker thread in the order they were issued, so commands for a call are
+ * never reordered. While a command is the last one queued for its call, a duplicate of it (a
+ * double-tapped answer, say) is dropped, and a command that supersedes it (unhold after hold,
+ * a new audio route) replaces it. Each command type keeps a count and a latency histogram, see
+ * {@link #dumpMetrics()}.
+ *
+ * DTMF tones are not queued with the other commands but timed by a {@link DtmfSequencer},
+ * so that a long string of tones can't hold up, say, hanging up.
+ */
 final class TelecomAdapter implements InCallPhoneListener {
     private static final String ADD_CALL_MODE_KEY = "add_call_mode";
 
+    private static final int MSG_RUN_COMMAND = 1;
+
+    /** What happens to a command issued while a similar one is still queued. */
+    private enum Coalescing {
+        /** A command equal to a queued one is dropped. */
+        DEDUPE,
+        /** A command replaces a queued one of the same group for the same call. */
+        LATEST_WINS
+    }
+
+    private enum CommandType {
+        ANSWER(Coalescing.DEDUPE),
+        DEFLECT(Coalescing.DEDUPE),
+        REJECT(Coalescing.DEDUPE),
+        DISCONNECT(Coalescing.DEDUPE),
+        HOLD(Coalescing.LATEST_WINS),
+        UNHOLD(Coalescing.LATEST_WINS),
+        MUTE(Coalescing.LATEST_WINS),
+        AUDIO_ROUTE(Coalescing.LATEST_WINS),
+        PROXIMITY_SENSOR(Coalescing.LATEST_WINS),
+        SWITCH_SUB(Coalescing.DEDUPE),
+        SEPARATE(Coalescing.DEDUPE),
+        MERGE(Coalescing.DEDUPE),
+        SWAP(Coalescing.DEDUPE),
+        PHONE_ACCOUNT_SELECTED(Coalescing.DEDUPE);
+
+        final Coalescing coalescing;
+
+        CommandType(Coalescing coalescing) {
+            this.coalescing = coalescing;
+        }
+
+        /** Types that supersede each other when coalescing. */
+        CommandType getGroup() {
+            return this == UNHOLD ? HOLD : this;
+        }
+    }
+
     private static TelecomAdapter sInstance;
     private Context mContext;
     private Phone mPhone;
 
+    private final Handler mWorkerHandler;
+    private final DtmfSequencer mDtmfSequencer = new DtmfSequencer();
+    // Guarded by itself.
+    private final ArrayDeque<Command> mQueue = new ArrayDeque<Command>();
+    // Guarded by mQueue.
+    private final EnumMap<CommandType, CommandMetrics> mMetrics =
+            new EnumMap<CommandType, CommandMetrics>(CommandType.class);
+
     static TelecomAdapter getInstance() {
         Preconditions.checkState(Looper.getMainLooper().getThread() == Thread.currentThread());
         if (sInstance == null) {
@@ -45,6 +111,19 @@ final class TelecomAdapter implements InCallPhoneListener {
     }
 
     private TelecomAdapter() {
+        final HandlerThread thread = new HandlerThread(TelecomAdapter.class.getSimpleName());
+        thread.start();
+        mWorkerHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_RUN_COMMAND) {
+                    runNextCommand();
+                }
+            }
+        };
+        for (CommandType type : CommandType.values()) {
+            mMetrics.put(type, new CommandMetrics(type));
+        }
     }
 
     void setContext(Context context) {
@@ -58,6 +137,7 @@ final class TelecomAdapter implements InCallPhoneListener {
 
     @Override
     public void clearPhone() {
+        Log.d(this, "Telecom commands:\n" + dumpMetrics() + mDtmfSequencer.dumpMetrics());
         mPhone = null;
     }
 
@@ -66,139 +146,226 @@ final class TelecomAdapter implements InCallPhoneListener {
         return call == null ? null : call.getTelecommCall();
     }
 
-    void answerCall(String callId, int videoState) {
-        if (mPhone != null) {
-            final android.telecom.Call call = getTelecommCallById(callId);
-            if (call != null) {
-                call.answer(videoState);
-            } else {
-                Log.e(this, "error answerCall, call not in call list: " + callId);
-            }
-        } else {
-            Log.e(this, "error answerCall, mPhone is null");
+    /**
+     * Looks up the call a command is for, logging an error if there is none.
+     */
+    private android.telecom.Call getTelecommCallForCommand(String command, String callId) {
+        if (mPhone == null) {
+            Log.e(this, "error " + command + ", mPhone is null");
+            return null;
+        }
+        final android.telecom.Call call = getTelecommCallById(callId);
+        if (call == null) {
+            Log.e(this, "error " + command + ", call not in call list: " + callId);
         }
+        return call;
     }
 
-    void deflectCall(String callId, String number) {
-        if (mPhone != null) {
-            getTelecommCallById(callId).deflectCall(number);
-        } else {
-            Log.e(this, "error deflectCall, mPhone is null");
+    void answerCall(String callId, final int videoState) {
+        final android.telecom.Call call = getTelecommCallForCommand("answerCall", callId);
+        if (call != null) {
+            enqueue(new Command(CommandType.ANSWER, callId, videoState) {
+                @Override
+                void execute() {
+                    call.answer(videoState);
+                }
+            });
         }
     }
 
-    void rejectCall(String callId, boolean rejectWithMessage, String message) {
-        if (mPhone != null) {
-            final android.telecom.Call call = getTelecommCallById(callId);
-            if (call != null) {
-                call.reject(rejectWithMessage, message);
-            } else {
-                Log.e(this, "error rejectCall, call not in call list: " + callId);
-            }
-        } else {
-            Log.e(this, "error rejectCall, mPhone is null");
+    void deflectCall(String callId, final String number) {
+        final android.telecom.Call call = getTelecommCallForCommand("deflectCall", callId);
+        if (call != null) {
+            enqueue(new Command(CommandType.DEFLECT, callId, number) {
+                @Override
+                void execute() {
+                    call.deflectCall(number);
+                }
+            });
+        }
+    }
+
+    void rejectCall(String callId, final boolean rejectWithMessage, final String message) {
+        final android.telecom.Call call = getTelecommCallForCommand("rejectCall", callId);
+        if (call != null) {
+            enqueue(new Command(CommandType.REJECT, callId, null) {
+                @Override
+                void execute() {
+                    call.reject(rejectWithMessage, message);
+                }
+            });
         }
     }
 
     void disconnectCall(String callId) {
-        if (mPhone != null) {
-            getTelecommCallById(callId).disconnect();
-        } else {
-            Log.e(this, "error disconnectCall, mPhone is null");
+        final android.telecom.Call call = getTelecommCallForCommand("disconnectCall", callId);
+        if (call != null) {
+            mDtmfSequencer.cancel(callId);
+            enqueue(new Command(CommandType.DISCONNECT, callId, null) {
+                @Override
+                void execute() {
+                    call.disconnect();
+                }
+            });
         }
     }
 
     void holdCall(String callId) {
-        if (mPhone != null) {
-            getTelecommCallById(callId).hold();
-        } else {
-            Log.e(this, "error holdCall, mPhone is null");
+        final android.telecom.Call call = getTelecommCallForCommand("holdCall", callId);
+        if (call != null) {
+            enqueue(new Command(CommandType.HOLD, callId, null) {
+                @Override
+                void execute() {
+                    call.hold();
+                }
+            });
         }
     }
 
     void unholdCall(String callId) {
-        if (mPhone != null) {
-            getTelecommCallById(callId).unhold();
-        } else {
-            Log.e(this, "error unholdCall, mPhone is null");
+        final android.telecom.Call call = getTelecommCallForCommand("unholdCall", callId);
+        if (call != null) {
+            enqueue(new Command(CommandType.UNHOLD, callId, null) {
+                @Override
+                void execute() {
+                    call.unhold();
+                }
+            });
         }
     }
 
-    void mute(boolean shouldMute) {
-        if (mPhone != null) {
-            mPhone.setMuted(shouldMute);
+    void mute(final boolean shouldMute) {
+        final Phone phone = mPhone;
+        if (phone != null) {
+            enqueue(new Command(CommandType.MUTE, null, shouldMute) {
+                @Override
+                void execute() {
+                    phone.setMuted(shouldMute);
+                }
+            });
         } else {
             Log.e(this, "error mute, mPhone is null");
         }
     }
 
-    void setAudioRoute(int route) {
-        if (mPhone != null) {
-            mPhone.setAudioRoute(route);
+    void setAudioRoute(final int route) {
+        final Phone phone = mPhone;
+        if (phone != null) {
+            enqueue(new Command(CommandType.AUDIO_ROUTE, null, route) {
+                @Override
+                void execute() {
+                    phone.setAudioRoute(route);
+                }
+            });
         } else {
             Log.e(this, "error setAudioRoute, mPhone is null");
         }
     }
 
     void turnOnProximitySensor() {
-        if (mPhone != null) {
-            mPhone.setProximitySensorOn();
+        final Phone phone = mPhone;
+        if (phone != null) {
+            enqueue(new Command(CommandType.PROXIMITY_SENSOR, null, true) {
+                @Override
+                void execute() {
+                    phone.setProximitySensorOn();
+                }
+            });
         } else {
             Log.e(this, "error setProximitySensorOn, mPhone is null");
         }
     }
 
-    void turnOffProximitySensor(boolean screenOnImmediately) {
-        if (mPhone != null) {
-            mPhone.setProximitySensorOff(screenOnImmediately);
+    void turnOffProximitySensor(final boolean screenOnImmediately) {
+        final Phone phone = mPhone;
+        if (phone != null) {
+            enqueue(new Command(CommandType.PROXIMITY_SENSOR, null, false) {
+                @Override
+                void execute() {
+                    phone.setProximitySensorOff(screenOnImmediately);
+                }
+            });
         } else {
             Log.e(this, "error setProximitySensorOff, mPhone is null");
         }
     }
 
-    void switchToOtherActiveSub(String subId, boolean retainLch) {
-        if (mPhone != null) {
-            mPhone.switchToOtherActiveSub(subId, retainLch);
+    void switchToOtherActiveSub(final String subId, final boolean retainLch) {
+        final Phone phone = mPhone;
+        if (phone != null) {
+            enqueue(new Command(CommandType.SWITCH_SUB, null, subId) {
+                @Override
+                void execute() {
+                    phone.switchToOtherActiveSub(subId, retainLch);
+                }
+            });
         } else {
             Log.e(this, "error switchToOtherActiveSub, mPhone is null");
         }
     }
 
     void separateCall(String callId) {
-        if (mPhone != null) {
-            getTelecommCallById(callId).splitFromConference();
-        } else {
-            Log.e(this, "error separateCall, mPhone is null.");
+        final android.telecom.Call call = getTelecommCallForCommand("separateCall", callId);
+        if (call != null) {
+            enqueue(new Command(CommandType.SEPARATE, callId, null) {
+                @Override
+                void execute() {
+                    call.splitFromConference();
+                }
+            });
         }
     }
 
-    void merge(String callId) {
-        if (mPhone != null) {
-            android.telecom.Call call = getTelecommCallById(callId);
-            List<android.telecom.Call> conferenceable = call.getConferenceableCalls();
-            if (!conferenceable.isEmpty()) {
-                call.conference(conferenceable.get(0));
-            } else {
-                if (call.getDetails().can(
-                        android.telecom.Call.Details.CAPABILITY_MERGE_CONFERENCE)) {
-                    call.mergeConference();
+    /**
+     * @return whether a command was sent, which it isn't if the call can't be merged.
+     */
+    boolean merge(String callId) {
+        final android.telecom.Call call = getTelecommCallForCommand("merge", callId);
+        if (call == null) {
+            return false;
+        }
+        // Decided here, since the call's state is only current on the main thread.
+        List<android.telecom.Call> conferenceable = call.getConferenceableCalls();
+        if (!conferenceable.isEmpty()) {
+            final android.telecom.Call other = conferenceable.get(0);
+            enqueue(new Command(CommandType.MERGE, callId, null) {
+                @Override
+                void execute() {
+                    call.conference(other);
                 }
-            }
+            });
+            return true;
         } else {
-            Log.e(this, "error merge, mPhone is null.");
+            if (call.getDetails().can(
+                    android.telecom.Call.Details.CAPABILITY_MERGE_CONFERENCE)) {
+                enqueue(new Command(CommandType.MERGE, callId, null) {
+                    @Override
+                    void execute() {
+                        call.mergeConference();
+                    }
+                });
+                return true;
+            }
         }
+        return false;
     }
 
-    void swap(String callId) {
-        if (mPhone != null) {
-            android.telecom.Call call = getTelecommCallById(callId);
-            if (call.getDetails().can(
-                    android.telecom.Call.Details.CAPABILITY_SWAP_CONFERENCE)) {
-                call.swapConference();
-            }
-        } else {
-            Log.e(this, "Error swap, mPhone is null.");
+    /**
+     * @return whether a command was sent, which it isn't if the call can't be swapped.
+     */
+    boolean swap(String callId) {
+        final android.telecom.Call call = getTelecommCallForCommand("swap", callId);
+        if (call != null && call.getDetails().can(
+                android.telecom.Call.Details.CAPABILITY_SWAP_CONFERENCE)) {
+            enqueue(new Command(CommandType.SWAP, callId, null) {
+                @Override
+                void execute() {
+                    call.swapConference();
+                }
+            });
+            return true;
         }
+        return false;
     }
 
     void addCall() {
@@ -223,34 +390,63 @@ final class TelecomAdapter implements InCallPhoneListener {
     }
 
     void playDtmfTone(String callId, char digit) {
-        if (mPhone != null) {
-            getTelecommCallById(callId).playDtmfTone(digit);
-        } else {
-            Log.e(this, "error playDtmfTone, mPhone is null");
+        final android.telecom.Call call = getTelecommCallForCommand("playDtmfTone", callId);
+        if (call != null) {
+            mDtmfSequencer.playTone(call, callId, digit);
         }
     }
 
     void stopDtmfTone(String callId) {
         if (mPhone != null) {
-            getTelecommCallById(callId).stopDtmfTone();
+            mDtmfSequencer.stopTone(callId);
         } else {
             Log.e(this, "error stopDtmfTone, mPhone is null");
         }
     }
 
+    /**
+     * Plays the tones for a string of digits, e.g. a pasted PIN, one after the other.
+     */
+    void playDtmfTones(String callId, CharSequence digits) {
+        playDtmfTones(callId, digits, null);
+    }
+
+    /**
+     * Plays the tones for a string of digits, then runs {@code onPlayed} on the main thread.
+     *
+     * @return whether the tones were queued; if not, {@code onPlayed} is never run.
+     */
+    boolean playDtmfTones(String callId, CharSequence digits, Runnable onPlayed) {
+        final android.telecom.Call call = getTelecommCallForCommand("playDtmfTones", callId);
+        if (call != null) {
+            mDtmfSequencer.playTones(call, callId, digits, onPlayed);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sent in order with the DTMF tones rather than with the other commands, so that tones
+     * played after cancelling telephony's own post-dial can't reach it before the cancel.
+     */
     void postDialContinue(String callId, boolean proceed) {
-        if (mPhone != null) {
-            getTelecommCallById(callId).postDialContinue(proceed);
-        } else {
-            Log.e(this, "error postDialContinue, mPhone is null");
+        final android.telecom.Call call = getTelecommCallForCommand("postDialContinue", callId);
+        if (call != null) {
+            mDtmfSequencer.postDialContinue(call, callId, proceed);
         }
     }
 
-    void phoneAccountSelected(String callId, PhoneAccountHandle accountHandle, boolean setDefault) {
-        if (mPhone != null) {
-            getTelecommCallById(callId).phoneAccountSelected(accountHandle, setDefault);
-        }  else {
-            Log.e(this, "error phoneAccountSelected, mAdapter is null");
+    void phoneAccountSelected(String callId, final PhoneAccountHandle accountHandle,
+            final boolean setDefault) {
+        final android.telecom.Call call =
+                getTelecommCallForCommand("phoneAccountSelected", callId);
+        if (call != null) {
+            enqueue(new Command(CommandType.PHONE_ACCOUNT_SELECTED, callId, accountHandle) {
+                @Override
+                void execute() {
+                    call.phoneAccountSelected(accountHandle, setDefault);
+                }
+            });
         }
 
         if (accountHandle == null) {
@@ -262,4 +458,120 @@ final class TelecomAdapter implements InCallPhoneListener {
         // Default to true if we are not connected to telecom.
         return mPhone == null ? true : mPhone.canAddCall();
     }
+
+    /**
+     * @return the count, coalescing and latency (from being issued until sent to telecom)
+     * of each type of command issued so far, one line per type.
+     */
+    String dumpMetrics() {
+        final StringBuilder sb = new StringBuilder();
+        synchronized (mQueue) {
+            for (CommandMetrics metrics : mMetrics.values()) {
+                if (metrics.issued > 0) {
+                    sb.append(metrics).append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private void enqueue(Command command) {
+        final CommandType type = command.type;
+        synchronized (mQueue) {
+            final CommandMetrics metrics = mMetrics.get(type);
+            metrics.issued++;
+            // Only the last command queued for the call is coalesced with, so that commands
+            // for the call are never reordered.
+            final Iterator<Command> it = mQueue.descendingIterator();
+            while (it.hasNext()) {
+                final Command queued = it.next();
+                if (!Objects.equal(queued.callId, command.callId)) {
+                    continue;
+                }
+                if (type.coalescing == Coalescing.DEDUPE && queued.type == type
+                        && Objects.equal(queued.arg, command.arg)) {
+                    Log.d(this, "Dropping duplicate " + type + " for " + command.callId);
+                    metrics.coalesced++;
+                    return;
+                }
+                if (type.coalescing == Coalescing.LATEST_WINS
+                        && queued.type.getGroup() == type.getGroup()) {
+                    Log.d(this, type + " supersedes queued " + queued.type + " for "
+                            + command.callId);
+                    it.remove();
+                    mMetrics.get(queued.type).coalesced++;
+                }
+                break;
+            }
+            mQueue.add(command);
+        }
+        mWorkerHandler.sendEmptyMessage(MSG_RUN_COMMAND);
+    }
+
+    /** Runs on the worker thread. */
+    private void runNextCommand() {
+        final Command command;
+        synchronized (mQueue) {
+            command = mQueue.poll();
+        }
+        if (command == null) {
+            // Coalesced away.
+            return;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        boolean failed = false;
+        try {
+            command.execute();
+        } catch (RuntimeException e) {
+            Log.e(this, "error " + command.type + " for " + command.callId, e);
+            failed = true;
+        }
+        final long end = SystemClock.elapsedRealtime();
+        synchronized (mQueue) {
+            final CommandMetrics metrics = mMetrics.get(command.type);
+            metrics.latencies.add(end - command.issueTime);
+            metrics.executionMs += end - start;
+            if (failed) {
+                metrics.failed++;
+            }
+        }
+    }
+
+    /**
+     * A command for telecom, run on the worker thread.
+     */
+    private abstract static class Command {
+        final CommandType type;
+        /** The call the command is for, or null for commands about the phone. */
+        final String callId;
+        /** What tells two commands of the same type apart, for coalescing. */
+        final Object arg;
+        final long issueTime = SystemClock.elapsedRealtime();
+
+        Command(CommandType type, String callId, Object arg) {
+            this.type = type;
+            this.callId = callId;
+            this.arg = arg;
+        }
+
+        abstract void execute();
+    }
+
+    private static class CommandMetrics {
+        final LatencyHistogram latencies;
+        int issued;
+        int coalesced;
+        int failed;
+        long executionMs;
+
+        CommandMetrics(CommandType type) {
+            latencies = new LatencyHistogram(type.name().toLowerCase());
+        }
+
+        @Override
+        public String toString() {
+            return latencies + " issued=" + issued + " coalesced=" + coalesced
+                    + " failed=" + failed + " executionMs=" + executionMs;
+        }
+    }
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * A single source of periodic ticks for everything that needs regular updates during a call,
+ * such as the call timer, the recording progress and the 45 second vibration.
+ *
+ * Every subscriber is due on a whole second of wall clock time, so subscribers with intervals
+ * in whole seconds share one wakeup rather than each scheduling their own. Subscribers that
+ * only update the in-call UI are not ticked while the UI is hidden; they get one tick when it
+ * is shown again, so that they can catch up. Must be used from the main thread.
+ */
+public class TickScheduler extends Handler {
+    private static final String TAG = TickScheduler.class.getSimpleName();
+
+    private static final int MSG_TICK = 1;
+    private static final long SECOND_MS = 1000;
+    // Handler wakeups and wall clock time may disagree by a few milliseconds.
+    private static final long TOLERANCE_MS = 50;
+
+    public interface Listener {
+        public void onTick();
+    }
+
+    private static TickScheduler sInstance;
+
+    private final LinkedHashMap<Listener, Subscription> mSubscriptions =
+            new LinkedHashMap<Listener, Subscription>();
+    private boolean mUiShowing;
+    private int mWakeups;
+    private int mTicks;
+    private int mSuspendedTicks;
+
+    private static final class Subscription {
+        final Listener listener;
+        final long intervalMs;
+        final boolean uiOnly;
+        // Wall clock time of the next tick, on a whole second.
+        long dueTime;
+
+        Subscription(Listener listener, long intervalMs, boolean uiOnly, long dueTime) {
+            this.listener = listener;
+            this.intervalMs = intervalMs;
+            this.uiOnly = uiOnly;
+            this.dueTime = dueTime;
+        }
+    }
+
+    public static synchronized TickScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new TickScheduler();
+        }
+        return sInstance;
+    }
+
+    private TickScheduler() {
+        super(Looper.getMainLooper());
+        mUiShowing = InCallPresenter.getInstance().isShowingInCallUi();
+    }
+
+    /**
+     * Ticks the listener every {@code intervalMs}, starting {@code firstDelayMs} from now.
+     * Both are rounded up to the next whole second. Replaces any previous subscription of
+     * the listener.
+     *
+     * @param uiOnly Whether the listener only updates the in-call UI, and so can be
+     * suspended while the UI is hidden.
+     */
+    public void subscribe(Listener listener, long intervalMs, long firstDelayMs,
+            boolean uiOnly) {
+        Preconditions.checkNotNull(listener);
+        Preconditions.checkArgument(intervalMs > 0);
+
+        final long dueTime = alignToSecond(System.currentTimeMillis() + firstDelayMs);
+        mSubscriptions.put(listener, new Subscription(listener, alignToSecond(intervalMs),
+                uiOnly, dueTime));
+        reschedule();
+    }
+
+    public void unsubscribe(Listener listener) {
+        if (mSubscriptions.remove(listener) != null) {
+            if (mSubscriptions.isEmpty()) {
+                Log.d(TAG, "Idle after " + mWakeups + " wakeups, " + mTicks + " ticks, "
+                        + mSuspendedTicks + " ticks skipped while the UI was hidden");
+            }
+            reschedule();
+        }
+    }
+
+    /**
+     * Called by {@link InCallPresenter} when the in-call UI is shown or hidden.
+     */
+    public void onUiShowing(boolean showing) {
+        if (mUiShowing == showing) {
+            return;
+        }
+        mUiShowing = showing;
+        if (showing) {
+            // Bring the UI up to date rather than waiting for the next tick.
+            final long now = System.currentTimeMillis();
+            for (Subscription subscription : snapshot()) {
+                if (subscription.uiOnly && isSubscribed(subscription)) {
+                    subscription.dueTime = alignToSecond(now) + subscription.intervalMs;
+                    subscription.listener.onTick();
+                    mTicks++;
+                }
+            }
+        }
+        reschedule();
+    }
+
+    /**
+     * @return the number of times the scheduler has woken up to deliver ticks.
+     */
+    public int getWakeupCount() {
+        return mWakeups;
+    }
+
+    @Override
+    public void handleMessage(Message msg) {
+        if (msg.what != MSG_TICK) {
+            return;
+        }
+        mWakeups++;
+        final long now = System.currentTimeMillis();
+        for (Subscription subscription : snapshot()) {
+            if (subscription.dueTime - now > subscription.intervalMs) {
+                // The wall clock was set back.
+                subscription.dueTime = now / SECOND_MS * SECOND_MS;
+            }
+            if (subscription.dueTime > now + TOLERANCE_MS || !isSubscribed(subscription)) {
+                continue;
+            }
+            // Skip ticks that were missed, e.g. while suspended.
+            while (subscription.dueTime <= now + TOLERANCE_MS) {
+                subscription.dueTime += subscription.intervalMs;
+            }
+            if (subscription.uiOnly && !mUiShowing) {
+                mSuspendedTicks++;
+                continue;
+            }
+            subscription.listener.onTick();
+            mTicks++;
+        }
+        reschedule();
+    }
+
+    private void reschedule() {
+        removeMessages(MSG_TICK);
+        final long now = System.currentTimeMillis();
+        long delay = Long.MAX_VALUE;
+        for (Subscription subscription : mSubscriptions.values()) {
+            if (subscription.uiOnly && !mUiShowing) {
+                continue;
+            }
+            // Don't wait longer than an interval if the wall clock was set back.
+            final long subscriptionDelay = Math.min(subscription.dueTime - now,
+                    subscription.intervalMs);
+            delay = Math.min(delay, Math.max(0, subscriptionDelay));
+        }
+        if (delay != Long.MAX_VALUE) {
+            sendEmptyMessageAtTime(MSG_TICK, SystemClock.uptimeMillis() + delay);
+        }
+    }
+
+    private ArrayList<Subscription> snapshot() {
+        // Listeners may subscribe or unsubscribe while being ticked.
+        return new ArrayList<Subscription>(mSubscriptions.values());
+    }
+
+    private boolean isSubscribed(Subscription subscription) {
+        return mSubscriptions.get(subscription.listener) == subscription;
+    }
+
+    private static long alignToSecond(long timeMs) {
+        return (timeMs + SECOND_MS - 1) / SECOND_MS * SECOND_MS;
+    }
+}
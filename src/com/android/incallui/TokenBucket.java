@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.SystemClock;
+
+/**
+ * A token bucket rate limiter: allows bursts of up to {@code capacity} operations, refilled
+ * at one token per {@code refillIntervalMs}. Not thread safe; use it from a single thread.
+ */
+public class TokenBucket {
+    private final int mCapacity;
+    private final long mRefillIntervalMs;
+    private int mTokens;
+    private long mLastRefill;
+
+    public TokenBucket(int capacity, long refillIntervalMs) {
+        mCapacity = capacity;
+        mRefillIntervalMs = refillIntervalMs;
+        mTokens = capacity;
+        mLastRefill = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return 0 if a token was taken, otherwise the time in milliseconds until the next one
+     * is available.
+     */
+    public long tryAcquire() {
+        final long now = SystemClock.elapsedRealtime();
+        final long refills = (now - mLastRefill) / mRefillIntervalMs;
+        if (refills > 0) {
+            mTokens = (int) Math.min(mCapacity, mTokens + refills);
+            mLastRefill += refills * mRefillIntervalMs;
+        }
+        if (mTokens == mCapacity) {
+            // A full bucket doesn't accumulate time towards the next token.
+            mLastRefill = now;
+        }
+        if (mTokens > 0) {
+            mTokens--;
+            return 0;
+        }
+        return mLastRefill + mRefillIntervalMs - now;
+    }
+}
@@ -1012,7 +1012,9 @@ public class VideoCallFragment extends BaseFragment<VideoCallPresenter,
     private void inflateVideoCallViews() {
         Log.d(this, "inflateVideoCallViews");
         if (mVideoViews == null ) {
+            final DeferredCreation creation = DeferredCreation.begin("video views");
             mVideoViews = mVideoViewsStub.inflate();
+            creation.end();
         }
 
         if (mVideoViews != null) {
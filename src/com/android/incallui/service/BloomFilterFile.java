@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A bloom filter of phone numbers kept in a memory-mapped file.
+ *
+ * Membership tests read a handful of bytes of the mapping and don't allocate. Numbers are
+ * added by setting their bits in place, so a filter is updated incrementally without
+ * rewriting the file; numbers can't be removed. The layout (big-endian) is:
+ *
+ * <pre>
+ * header (32 bytes): magic, version, number of hash functions, 0,
+ *                    long number of bits, long number of added numbers
+ * bits:              number of bits / 8 bytes
+ * </pre>
+ *
+ * Only the digits of a number are hashed, so "+1 650-555-1212" and "16505551212" are the
+ * same number; callers should pass numbers in their E.164 form.
+ */
+public class BloomFilterFile {
+    private static final int MAGIC = 0x49434231; // "ICB1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int COUNT_OFFSET = 24;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final MappedByteBuffer mBuffer;
+    private final boolean mWritable;
+    private final int mNumHashes;
+    private final long mNumBits;
+
+    private BloomFilterFile(MappedByteBuffer buffer, boolean writable) throws IOException {
+        mBuffer = buffer;
+        mWritable = writable;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a bloom filter");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported bloom filter version " + buffer.getInt(4));
+        }
+        mNumHashes = buffer.getInt(8);
+        mNumBits = buffer.getLong(16);
+        if (mNumHashes <= 0 || mNumBits <= 0 || HEADER_SIZE + mNumBits / 8 > buffer.capacity()) {
+            throw new IOException("Corrupt bloom filter");
+        }
+    }
+
+    /**
+     * Maps an existing filter.
+     *
+     * @param writable whether numbers will be added to the filter.
+     */
+    public static BloomFilterFile open(File file, boolean writable) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer buffer = channel.map(writable
+                    ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            return new BloomFilterFile(buffer, writable);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Creates an empty filter sized for the given number of numbers and false positive
+     * rate, and maps it writable.
+     */
+    public static BloomFilterFile create(File file, long expectedNumbers,
+            double falsePositiveRate) throws IOException {
+        final double ln2 = Math.log(2);
+        final long bits = (long) Math.ceil(
+                -expectedNumbers * Math.log(falsePositiveRate) / (ln2 * ln2));
+        final long numBits = Math.max(64, (bits + 63) / 64 * 64);
+        final int numHashes = Math.max(1,
+                (int) Math.round((double) numBits / expectedNumbers * ln2));
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + numBits / 8);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(numHashes);
+            raf.writeInt(0);
+            raf.writeLong(numBits);
+            raf.writeLong(0);
+        } finally {
+            raf.close();
+        }
+        return open(file, true);
+    }
+
+    /**
+     * @return {@code true} if the number may have been added, {@code false} if it
+     * definitely hasn't.
+     */
+    public boolean mightContain(CharSequence number) {
+        final long hash1 = hash(number);
+        if (hash1 == 0) {
+            return false;
+        }
+        final long hash2 = mix(hash1 ^ FNV_OFFSET_BASIS) | 1;
+        for (int i = 0; i < mNumHashes; i++) {
+            final long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % mNumBits;
+            final byte b = mBuffer.get(HEADER_SIZE + (int) (bit >>> 3));
+            if ((b & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a number by setting its bits in the mapping. The kernel writes the changed pages
+     * back; call {@link #force()} to do it synchronously.
+     *
+     * @throws IllegalStateException if the filter was opened read-only.
+     */
+    public synchronized void put(CharSequence number) {
+        if (!mWritable) {
+            throw new IllegalStateException("Bloom filter is read-only");
+        }
+        final long hash1 = hash(number);
+        if (hash1 == 0) {
+            return;
+        }
+        final long hash2 = mix(hash1 ^ FNV_OFFSET_BASIS) | 1;
+        for (int i = 0; i < mNumHashes; i++) {
+            final long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % mNumBits;
+            final int index = HEADER_SIZE + (int) (bit >>> 3);
+            mBuffer.put(index, (byte) (mBuffer.get(index) | (1 << (bit & 7))));
+        }
+        mBuffer.putLong(COUNT_OFFSET, mBuffer.getLong(COUNT_OFFSET) + 1);
+    }
+
+    /** Writes changes made by {@link #put} to the file. */
+    public synchronized void force() {
+        if (mWritable) {
+            mBuffer.force();
+        }
+    }
+
+    /** @return the number of numbers added to the filter. */
+    public long getCount() {
+        return mBuffer.getLong(COUNT_OFFSET);
+    }
+
+    /**
+     * @return a hash of the digits of the number, or 0 if it has none.
+     */
+    private static long hash(CharSequence number) {
+        if (number == null) {
+            return 0;
+        }
+        long hash = FNV_OFFSET_BASIS;
+        boolean hasDigits = false;
+        for (int i = 0; i < number.length(); i++) {
+            final char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                hash = (hash ^ c) * FNV_PRIME;
+                hasDigits = true;
+            }
+        }
+        return hasDigits ? mix(hash) | 1 : 0;
+    }
+
+    /** The finalizer of MurmurHash3, to spread the FNV hash over all bits. */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+
+import java.util.Random;
+
+/**
+ * A stand-in {@link PhoneNumberService} that answers from memory after a simulated delay.
+ * It needs no backend, so it can be used to load test the remote lookup path.
+ *
+ * Every lookup takes a random latency between the configured minimum and maximum; a
+ * configurable fraction of lookups never answers at all, and another fraction answers with
+ * a miss.
+ */
+public class LocalPhoneNumberService implements PhoneNumberService {
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom = new Random();
+    private final long mMinLatencyMs;
+    private final long mMaxLatencyMs;
+    private final float mDropRate;
+    private final float mMissRate;
+
+    /**
+     * @param minLatencyMs minimum time before a lookup is answered
+     * @param maxLatencyMs maximum time before a lookup is answered
+     * @param dropRate fraction of lookups, between 0 and 1, that are never answered
+     * @param missRate fraction of lookups, between 0 and 1, that are answered with a miss
+     */
+    public LocalPhoneNumberService(long minLatencyMs, long maxLatencyMs, float dropRate,
+            float missRate) {
+        mMinLatencyMs = minLatencyMs;
+        mMaxLatencyMs = Math.max(minLatencyMs, maxLatencyMs);
+        mDropRate = dropRate;
+        mMissRate = missRate;
+    }
+
+    @Override
+    public void getPhoneNumberInfo(final String phoneNumber, final NumberLookupListener listener,
+            ImageLookupListener imageListener, boolean isIncoming) {
+        if (mRandom.nextFloat() < mDropRate) {
+            return;
+        }
+
+        final boolean miss = mRandom.nextFloat() < mMissRate;
+        final long latency = mMinLatencyMs
+                + (long) (mRandom.nextFloat() * (mMaxLatencyMs - mMinLatencyMs));
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPhoneNumberInfoComplete(miss ? null : new LocalInfo(phoneNumber));
+            }
+        }, latency);
+    }
+
+    private static class LocalInfo implements PhoneNumberInfo {
+        private final String mNumber;
+
+        LocalInfo(String number) {
+            mNumber = number;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Test caller " + mNumber;
+        }
+
+        @Override
+        public String getNumber() {
+            return mNumber;
+        }
+
+        @Override
+        public int getPhoneType() {
+            return Phone.TYPE_WORK;
+        }
+
+        @Override
+        public String getPhoneLabel() {
+            return null;
+        }
+
+        @Override
+        public String getNormalizedNumber() {
+            return mNumber;
+        }
+
+        @Override
+        public String getImageUrl() {
+            return null;
+        }
+
+        @Override
+        public boolean isBusiness() {
+            return true;
+        }
+    }
+}
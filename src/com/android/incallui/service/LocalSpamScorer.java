@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui.service;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * A {@link SpamScorer} answering from data on the device:
+ *
+ * <ul>
+ * <li>a {@link BloomFilterFile} of reported numbers. It lives in the app's data so that
+ * reports are added in place; on first use it is copied from a seed shipped with the
+ * system, or created empty.</li>
+ * <li>prefix rules, read from a text file of "&lt;prefix digits&gt; &lt;score&gt;" lines,
+ * for number ranges known to be used for spam. The longest matching prefix wins.</li>
+ * <li>call frequency: a number that keeps calling in a short time scores higher.</li>
+ * </ul>
+ *
+ * The files are loaded on a background thread; until they are, numbers are scored by call
+ * frequency only, so scoring never waits for the disk.
+ */
+public class LocalSpamScorer implements SpamScorer {
+    private static final String TAG = LocalSpamScorer.class.getSimpleName();
+
+    private static final int REPORTED_SCORE = 60;
+    private static final int REPEATED_CALL_SCORE = 20;
+    private static final int MAX_REPEATED_CALLS_SCORE = 40;
+    /** Calls from the same number up to this count are not suspicious. */
+    private static final int NORMAL_RECENT_CALLS = 2;
+
+    private static final long DEFAULT_EXPECTED_NUMBERS = 100000;
+    private static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    private final File mFilterFile;
+    private final File mSeedFile;
+    private final File mRulesFile;
+
+    private volatile BloomFilterFile mFilter;
+    // Keyed like OfflineDirectory records, so that a prefix is matched without substrings.
+    private volatile HashMap<Long, Integer> mRules;
+    private volatile int mRulePrefixLengths;
+
+    /**
+     * @param filterFile The writable filter of reported numbers.
+     * @param seedFile The filter copied to filterFile if it doesn't exist yet.
+     * @param rulesFile The prefix rules.
+     */
+    public LocalSpamScorer(File filterFile, File seedFile, File rulesFile) {
+        mFilterFile = filterFile;
+        mSeedFile = seedFile;
+        mRulesFile = rulesFile;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                loadRules();
+                loadFilter();
+            }
+        }, TAG).start();
+    }
+
+    @Override
+    public int getScore(String number, int recentCalls) {
+        int score = 0;
+        final BloomFilterFile filter = mFilter;
+        if (filter != null && filter.mightContain(number)) {
+            score += REPORTED_SCORE;
+        }
+        score += getRuleScore(number);
+        if (recentCalls > NORMAL_RECENT_CALLS) {
+            score += Math.min(MAX_REPEATED_CALLS_SCORE,
+                    (recentCalls - NORMAL_RECENT_CALLS) * REPEATED_CALL_SCORE);
+        }
+        return Math.min(MAX_SCORE, score);
+    }
+
+    @Override
+    public void reportSpam(String number) {
+        final BloomFilterFile filter = mFilter;
+        if (filter == null) {
+            Log.w(TAG, "Spam filter not loaded, dropping report");
+            return;
+        }
+        filter.put(number);
+    }
+
+    private int getRuleScore(String number) {
+        final HashMap<Long, Integer> rules = mRules;
+        if (rules == null || rules.isEmpty() || number == null) {
+            return 0;
+        }
+
+        long value = 0;
+        int digits = 0;
+        for (int i = 0; i < number.length() && digits < OfflineDirectory.MAX_PREFIX_LENGTH; i++) {
+            final char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits++;
+            }
+        }
+        for (int length = digits; length > 0; length--) {
+            if ((mRulePrefixLengths & (1 << length)) != 0) {
+                final Integer score = rules.get(OfflineDirectory.key(value, length));
+                if (score != null) {
+                    return score;
+                }
+            }
+            value /= 10;
+        }
+        return 0;
+    }
+
+    private void loadRules() {
+        final HashMap<Long, Integer> rules = new HashMap<Long, Integer>();
+        int prefixLengths = 0;
+        if (mRulesFile.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(mRulesFile));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    final String[] fields = line.split("\\s+");
+                    final long key = OfflineDirectory.key(fields[0]);
+                    if (fields.length != 2 || key < 0) {
+                        Log.w(TAG, "Ignoring spam rule: " + line);
+                        continue;
+                    }
+                    try {
+                        rules.put(key, Math.min(MAX_SCORE, Integer.parseInt(fields[1])));
+                        prefixLengths |= 1 << fields[0].length();
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Ignoring spam rule: " + line);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read spam rules", e);
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Unable to close spam rules", e);
+                    }
+                }
+            }
+        }
+        mRulePrefixLengths = prefixLengths;
+        mRules = rules;
+    }
+
+    private void loadFilter() {
+        try {
+            if (!mFilterFile.exists()) {
+                if (mSeedFile != null && mSeedFile.exists()) {
+                    copy(mSeedFile, mFilterFile);
+                } else {
+                    mFilter = BloomFilterFile.create(mFilterFile, DEFAULT_EXPECTED_NUMBERS,
+                            DEFAULT_FALSE_POSITIVE_RATE);
+                    return;
+                }
+            }
+            mFilter = BloomFilterFile.open(mFilterFile, true);
+            Log.d(TAG, "Loaded spam filter with " + mFilter.getCount() + " numbers");
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to load spam filter", e);
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        final InputStream in = new FileInputStream(from);
+        try {
+            final OutputStream out = new FileOutputStream(to);
+            try {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A read-only directory of number prefixes (businesses, hotlines, known services) to names
+ * and labels, answered without a backend.
+ *
+ * The directory is a file that is memory-mapped and searched in place, so opening it costs
+ * no heap regardless of its size and a lookup only touches the pages it binary searches.
+ * The file is built by {@code tools/callerdirectory}; its layout (big-endian) is:
+ *
+ * <pre>
+ * header  (32 bytes): magic, version, record count, records offset, strings offset,
+ *                     prefix lengths (bit n is set if there are prefixes of n digits), 0, 0
+ * records (16 bytes each, sorted by key):
+ *         long  key        prefix digits as a number, shifted left by 5, or'ed with the
+ *                          number of digits (so "1" and "01" are different keys)
+ *         int   strings    offset of the name in the string table
+ *         int   flags      {@link #FLAG_BUSINESS}
+ * strings: for each entry, the name and then the label, each as an unsigned short length
+ *          followed by that many bytes of UTF-8
+ * </pre>
+ *
+ * Lookups return the entry with the longest prefix of the number, only searching for the
+ * prefix lengths the directory has. Entries whose strings don't lie within the file are
+ * treated as missing. Instances are immutable and may be used from any thread.
+ */
+public class OfflineDirectory {
+    static final int MAGIC = 0x49434431; // "ICD1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 16;
+
+    /** Prefixes are stored as a long, so they can't have more digits than this. */
+    public static final int MAX_PREFIX_LENGTH = 16;
+
+    public static final int FLAG_BUSINESS = 1 << 0;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A directory entry.
+     */
+    public static class Entry {
+        public final int prefixLength;
+        public final String name;
+        public final String label;
+        public final int flags;
+
+        Entry(int prefixLength, String name, String label, int flags) {
+            this.prefixLength = prefixLength;
+            this.name = name;
+            this.label = label;
+            this.flags = flags;
+        }
+
+        public boolean isBusiness() {
+            return (flags & FLAG_BUSINESS) != 0;
+        }
+    }
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final int mRecordsOffset;
+    private final int mStringsOffset;
+    private final int mPrefixLengths;
+
+    private OfflineDirectory(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a caller directory");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported caller directory version " + buffer.getInt(4));
+        }
+        mCount = buffer.getInt(8);
+        mRecordsOffset = buffer.getInt(12);
+        mStringsOffset = buffer.getInt(16);
+        mPrefixLengths = buffer.getInt(20);
+        if (mCount < 0 || mRecordsOffset < HEADER_SIZE
+                || (long) mRecordsOffset + (long) mCount * RECORD_SIZE > mStringsOffset
+                || mStringsOffset > buffer.capacity()) {
+            throw new IOException("Corrupt caller directory");
+        }
+    }
+
+    /**
+     * Maps the directory file into memory.
+     *
+     * @throws IOException if the file can't be read or isn't a valid directory.
+     */
+    public static OfflineDirectory open(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            // The mapping stays valid after the channel is closed.
+            final MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new OfflineDirectory(buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** @return the number of entries in the directory. */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Looks up the entry with the longest prefix matching the number. Characters other
+     * than digits, such as a leading '+', are ignored, so the number is best given in its
+     * E.164 form.
+     *
+     * @return the matching entry, or {@code null} if there is none.
+     */
+    public Entry lookup(CharSequence number) {
+        if (number == null || mCount == 0) {
+            return null;
+        }
+
+        // The value of the first MAX_PREFIX_LENGTH digits; shorter prefixes are derived by
+        // dropping trailing digits, so the search doesn't allocate.
+        long value = 0;
+        int digits = 0;
+        for (int i = 0; i < number.length() && digits < MAX_PREFIX_LENGTH; i++) {
+            final char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits++;
+            }
+        }
+
+        for (int length = digits; length > 0; length--) {
+            if ((mPrefixLengths & (1 << length)) != 0) {
+                final int index = find(key(value, length));
+                if (index >= 0) {
+                    return readEntry(index, length);
+                }
+            }
+            value /= 10;
+        }
+        return null;
+    }
+
+    static long key(long prefixValue, int prefixLength) {
+        return (prefixValue << 5) | prefixLength;
+    }
+
+    /**
+     * @return the key of the given digits, or -1 if they aren't a valid prefix.
+     */
+    static long key(String prefix) {
+        if (prefix == null || prefix.isEmpty() || prefix.length() > MAX_PREFIX_LENGTH) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < prefix.length(); i++) {
+            final char c = prefix.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return key(value, prefix.length());
+    }
+
+    private int find(long key) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long midKey = mBuffer.getLong(mRecordsOffset + mid * RECORD_SIZE);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the entry, or {@code null} if its strings don't lie within the file.
+     */
+    private Entry readEntry(int index, int prefixLength) {
+        final int record = mRecordsOffset + index * RECORD_SIZE;
+        final int capacity = mBuffer.capacity();
+        final long stringOffset = (long) mStringsOffset + mBuffer.getInt(record + 8);
+        final int flags = mBuffer.getInt(record + 12);
+        if (stringOffset < mStringsOffset || stringOffset + 2 > capacity) {
+            return null;
+        }
+        final int nameLength = mBuffer.getShort((int) stringOffset) & 0xffff;
+        final long labelOffset = stringOffset + 2 + nameLength;
+        if (labelOffset + 2 > capacity) {
+            return null;
+        }
+        final int labelLength = mBuffer.getShort((int) labelOffset) & 0xffff;
+        if (labelOffset + 2 + labelLength > capacity) {
+            return null;
+        }
+        return new Entry(prefixLength, readString((int) stringOffset + 2, nameLength),
+                labelLength == 0 ? null : readString((int) labelOffset + 2, labelLength),
+                flags);
+    }
+
+    private String readString(int offset, int length) {
+        // Work on a duplicate so that concurrent lookups don't share a position.
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(offset);
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
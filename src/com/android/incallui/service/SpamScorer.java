@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui.service;
+
+/**
+ * Scores incoming numbers for how likely they are to be spam. Scoring is done on the main
+ * thread while the incoming call is set up, so implementations must answer from local data
+ * in microseconds.
+ */
+public interface SpamScorer {
+
+    /** Scores range from 0 (no signal) to this value. */
+    public static final int MAX_SCORE = 100;
+
+    /** Numbers scoring at least this are labeled as likely spam. */
+    public static final int SPAM_LIKELY_SCORE = 50;
+
+    /**
+     * Scores a number.
+     *
+     * @param number The number, preferably in E.164 form.
+     * @param recentCalls How many times the number has called recently, including this call.
+     * @return the score, between 0 and {@link #MAX_SCORE}.
+     */
+    public int getScore(String number, int recentCalls);
+
+    /**
+     * Records that the user reported the number as spam.
+     *
+     * @param number The number, preferably in E.164 form.
+     */
+    public void reportSpam(String number);
+}
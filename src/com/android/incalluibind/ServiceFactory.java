@@ -17,8 +17,14 @@
 package com.android.incalluibind;
 
 import android.content.Context;
+import android.os.SystemProperties;
 
+import java.io.File;
+
+import com.android.incallui.service.LocalPhoneNumberService;
+import com.android.incallui.service.LocalSpamScorer;
 import com.android.incallui.service.PhoneNumberService;
+import com.android.incallui.service.SpamScorer;
 import com.android.dialer.lookup.ReverseLookupService;
 
 /**
@@ -26,7 +32,23 @@ import com.android.dialer.lookup.ReverseLookupService;
  */
 public class ServiceFactory {
 
+    /** Set to true to answer remote lookups from an in-memory stand-in, for load tests. */
+    private static final String PROPERTY_LOCAL_LOOKUP = "debug.incallui.local_lookup";
+
+    private static final String SPAM_FILTER_FILE = "spam_filter.bloom";
+    private static final String SPAM_FILTER_SEED = "/system/etc/spam_filter.bloom";
+    private static final String SPAM_RULES = "/system/etc/spam_rules.txt";
+
     public static PhoneNumberService newPhoneNumberService(Context context) {
+        if (SystemProperties.getBoolean(PROPERTY_LOCAL_LOOKUP, false)) {
+            return new LocalPhoneNumberService(100 /* minLatencyMs */, 3000 /* maxLatencyMs */,
+                    0.1f /* dropRate */, 0.2f /* missRate */);
+        }
         return new ReverseLookupService(context);
     }
+
+    public static SpamScorer newSpamScorer(Context context) {
+        return new LocalSpamScorer(new File(context.getFilesDir(), SPAM_FILTER_FILE),
+                new File(SPAM_FILTER_SEED), new File(SPAM_RULES));
+    }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measures {@link OfflineDirectory} lookups per second on a synthetic directory.
+ *
+ * <pre>
+ * usage: OfflineDirectoryBenchmark [entries] [lookups]
+ * </pre>
+ *
+ * The directory holds the given number of 10 digit prefixes (default 20,000,000) under a
+ * few thousand names. Half of the looked up numbers extend a prefix in the directory and
+ * half are random, so both the hit and the full-length miss paths are measured.
+ */
+public class OfflineDirectoryBenchmark {
+    private static final int PREFIX_LENGTH = 10;
+    private static final long PREFIX_RANGE = 10000000000L;
+    private static final int NAMES = 4096;
+
+    public static void main(String[] args) throws IOException {
+        final int entries = args.length > 0 ? Integer.parseInt(args[0]) : 20000000;
+        final int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+        final Random random = new Random(42);
+
+        final File file = File.createTempFile("caller_directory", ".dat");
+        file.deleteOnExit();
+        final long[] prefixes = new long[entries];
+        long start = System.nanoTime();
+        final OfflineDirectoryBuilder builder = new OfflineDirectoryBuilder();
+        for (int i = 0; i < entries; i++) {
+            prefixes[i] = (random.nextLong() & Long.MAX_VALUE) % PREFIX_RANGE;
+            final int name = random.nextInt(NAMES);
+            builder.add(pad(prefixes[i]), "Business " + name, "Label " + (name % 16),
+                    name % 2 == 0);
+        }
+        final int written = builder.write(file);
+        System.out.println("Built " + written + " entries (" + file.length() / (1024 * 1024)
+                + " MB) in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        start = System.nanoTime();
+        final OfflineDirectory directory = OfflineDirectory.open(file);
+        System.out.println("Opened in " + (System.nanoTime() - start) / 1000 + " us");
+
+        final String[] numbers = new String[lookups];
+        for (int i = 0; i < lookups; i++) {
+            final long prefix = i % 2 == 0 ? prefixes[random.nextInt(entries)]
+                    : (random.nextLong() & Long.MAX_VALUE) % PREFIX_RANGE;
+            numbers[i] = "+" + pad(prefix) + (10 + random.nextInt(90));
+        }
+
+        // Warm up the mapping and the JIT before measuring.
+        for (int i = 0; i < Math.min(lookups, 100000); i++) {
+            directory.lookup(numbers[i]);
+        }
+
+        int hits = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            if (directory.lookup(numbers[i]) != null) {
+                hits++;
+            }
+        }
+        final long elapsedNs = System.nanoTime() - start;
+        System.out.println(lookups + " lookups (" + hits + " hits) in "
+                + elapsedNs / 1000000 + " ms: " + (long) (lookups * 1e9 / elapsedNs)
+                + " lookups/s, " + elapsedNs / lookups + " ns/lookup");
+    }
+
+    private static String pad(long prefix) {
+        final String digits = Long.toString(prefix);
+        final StringBuilder sb = new StringBuilder(PREFIX_LENGTH);
+        for (int i = digits.length(); i < PREFIX_LENGTH; i++) {
+            sb.append('0');
+        }
+        return sb.append(digits).toString();
+    }
+}
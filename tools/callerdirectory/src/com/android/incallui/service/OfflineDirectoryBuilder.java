@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui.service;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Builds an {@link OfflineDirectory} file.
+ *
+ * Entries are kept in primitive arrays and the string table is deduplicated, so that
+ * directories with tens of millions of prefixes can be built with a modest heap.
+ *
+ * <pre>
+ * usage: OfflineDirectoryBuilder &lt;input.csv&gt; &lt;output&gt;
+ * </pre>
+ *
+ * Each CSV line is {@code prefix,name[,label[,business]]}, where prefix is the leading
+ * digits of the E.164 form of the numbers without the '+', and business is "1" or "true".
+ * Fields may be double-quoted; blank lines and lines starting with '#' are ignored.
+ */
+public class OfflineDirectoryBuilder {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private long[] mKeys = new long[1024];
+    private long[] mValues = new long[1024];
+    private int mCount;
+
+    private final ByteArrayOutputStream mStrings = new ByteArrayOutputStream();
+    private final HashMap<String, Integer> mStringOffsets = new HashMap<String, Integer>();
+
+    /**
+     * Adds an entry. If the same prefix is added more than once, one of the entries is kept.
+     *
+     * @throws IllegalArgumentException if the prefix isn't made of 1 to
+     * {@link OfflineDirectory#MAX_PREFIX_LENGTH} digits.
+     */
+    public void add(String prefix, String name, String label, boolean business) {
+        final long key = OfflineDirectory.key(prefix);
+        if (key < 0) {
+            throw new IllegalArgumentException("Invalid prefix: " + prefix);
+        }
+        if (mCount == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, mCount * 2);
+            mValues = Arrays.copyOf(mValues, mCount * 2);
+        }
+        final int flags = business ? OfflineDirectory.FLAG_BUSINESS : 0;
+        mKeys[mCount] = key;
+        mValues[mCount] = ((long) addStrings(name, label) << 32) | flags;
+        mCount++;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Sorts the entries and writes the directory.
+     *
+     * @return the number of entries written, after dropping duplicate prefixes.
+     */
+    public int write(File file) throws IOException {
+        sort();
+
+        // Drop duplicates in place.
+        int unique = 0;
+        int prefixLengths = 0;
+        for (int i = 0; i < mCount; i++) {
+            prefixLengths |= 1 << (int) (mKeys[i] & 0x1f);
+            if (unique == 0 || mKeys[unique - 1] != mKeys[i]) {
+                mKeys[unique] = mKeys[i];
+                mValues[unique] = mValues[i];
+                unique++;
+            }
+        }
+        mCount = unique;
+
+        final long stringsOffset = OfflineDirectory.HEADER_SIZE
+                + (long) mCount * OfflineDirectory.RECORD_SIZE;
+        if (stringsOffset + mStrings.size() > Integer.MAX_VALUE) {
+            throw new IOException("Directory too large");
+        }
+
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(OfflineDirectory.MAGIC);
+            out.writeInt(OfflineDirectory.VERSION);
+            out.writeInt(mCount);
+            out.writeInt(OfflineDirectory.HEADER_SIZE);
+            out.writeInt((int) stringsOffset);
+            out.writeInt(prefixLengths);
+            out.writeInt(0);
+            out.writeInt(0);
+            for (int i = 0; i < mCount; i++) {
+                out.writeLong(mKeys[i]);
+                out.writeInt((int) (mValues[i] >>> 32));
+                out.writeInt((int) mValues[i]);
+            }
+            mStrings.writeTo(out);
+        } finally {
+            out.close();
+        }
+        return mCount;
+    }
+
+    private int addStrings(String name, String label) {
+        final String poolKey = name + '\0' + (label == null ? "" : label);
+        final Integer existing = mStringOffsets.get(poolKey);
+        if (existing != null) {
+            return existing;
+        }
+        final int offset = mStrings.size();
+        writeString(name);
+        writeString(label);
+        mStringOffsets.put(poolKey, offset);
+        return offset;
+    }
+
+    private void writeString(String s) {
+        final byte[] bytes = s == null ? new byte[0] : s.getBytes(UTF_8);
+        if (bytes.length > 0xffff) {
+            throw new IllegalArgumentException("String too long: " + s);
+        }
+        mStrings.write(bytes.length >> 8);
+        mStrings.write(bytes.length);
+        mStrings.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Heap sort of the key and value arrays by key; the arrays are too large to sort as
+     * objects.
+     */
+    private void sort() {
+        for (int i = mCount / 2 - 1; i >= 0; i--) {
+            siftDown(i, mCount);
+        }
+        for (int end = mCount - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    private void siftDown(int root, int end) {
+        while (true) {
+            int child = 2 * root + 1;
+            if (child >= end) {
+                return;
+            }
+            if (child + 1 < end && mKeys[child + 1] > mKeys[child]) {
+                child++;
+            }
+            if (mKeys[root] >= mKeys[child]) {
+                return;
+            }
+            swap(root, child);
+            root = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        final long key = mKeys[i];
+        mKeys[i] = mKeys[j];
+        mKeys[j] = key;
+        final long value = mValues[i];
+        mValues[i] = mValues[j];
+        mValues[j] = value;
+    }
+
+    static List<String> parseCsvLine(String line) {
+        final List<String> fields = new ArrayList<String>();
+        final StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: OfflineDirectoryBuilder <input.csv> <output>");
+            System.exit(1);
+        }
+
+        final OfflineDirectoryBuilder builder = new OfflineDirectoryBuilder();
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(args[0]), UTF_8));
+        int lineNumber = 0;
+        int skipped = 0;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final List<String> fields = parseCsvLine(line);
+                final String label = fields.size() > 2 ? fields.get(2) : null;
+                final boolean business = fields.size() > 3
+                        && ("1".equals(fields.get(3)) || "true".equalsIgnoreCase(fields.get(3)));
+                if (fields.size() < 2 || fields.get(1).isEmpty()
+                        || OfflineDirectory.key(fields.get(0)) < 0) {
+                    System.err.println("Skipping line " + lineNumber + ": " + line);
+                    skipped++;
+                    continue;
+                }
+                builder.add(fields.get(0), fields.get(1), label, business);
+            }
+        } finally {
+            reader.close();
+        }
+
+        final int read = builder.size();
+        final int written = builder.write(new File(args[1]));
+        System.out.println("Wrote " + written + " entries (" + (read - written)
+                + " duplicate prefixes, " + skipped + " invalid lines) to " + args[1]);
+    }
+}